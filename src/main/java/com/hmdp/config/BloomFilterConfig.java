@@ -0,0 +1,21 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.RedisBloomFilter;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+@Configuration
+public class BloomFilterConfig {
+
+    @Bean
+    public RedisBloomFilter shopBloomFilter(StringRedisTemplate stringRedisTemplate,
+                                            RedissonClient redissonClient,
+                                            @Value("${hmdp.bloom.shop.expected-insertions:1000000}") long expectedInsertions,
+                                            @Value("${hmdp.bloom.shop.fpp:0.01}") double fpp){
+        // 店铺id的布隆过滤器
+        return new RedisBloomFilter("shop", expectedInsertions, fpp, stringRedisTemplate, redissonClient);
+    }
+}
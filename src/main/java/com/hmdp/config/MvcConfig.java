@@ -1,13 +1,19 @@
 package com.hmdp.config;
 
+import com.hmdp.utils.AdminInterceptor;
 import com.hmdp.utils.LoginInterceptor;
+import com.hmdp.utils.RateLimitInterceptor;
+import com.hmdp.utils.RateLimiter;
 import com.hmdp.utils.RefreshTokenInterceptor;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.HashSet;
 
 @Configuration
 public class MvcConfig implements WebMvcConfigurer {
@@ -15,6 +21,14 @@ public class MvcConfig implements WebMvcConfigurer {
     @Resource
     StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    RateLimiter rateLimiter;
+
+    @Resource
+    RateLimitProperties rateLimitProperties;
+
+    @Value("${hmdp.admin.user-ids:}")
+    Long[] adminUserIds;
 
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
@@ -28,8 +42,14 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/voucher/**",
                         "/shop-type/**",
                         "/upload/**"
-                ).order(1);
+                ).order(2);
+        //管理接口拦截器 登录之后再判断是不是管理员 补充库存的接口在/voucher/**下 没有登录校验 这里同样会拦截
+        registry.addInterceptor(new AdminInterceptor(new HashSet<>(Arrays.asList(adminUserIds))))
+                .addPathPatterns("/cache/**", "/voucher/seckill/*/stock")
+                .order(3);
         //token刷新拦截器 order为0 先执行
         registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate)).order(0);
+        //限流拦截器 在token刷新之后 登录校验之前执行
+        registry.addInterceptor(new RateLimitInterceptor(rateLimiter, rateLimitProperties)).order(1);
     }
 }
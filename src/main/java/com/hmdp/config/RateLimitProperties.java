@@ -0,0 +1,55 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 限流配置 hmdp.rate-limit
+ * 每条规则按路径匹配请求 再按维度区分令牌桶 一个请求匹配多条规则时全部通过才放行
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.rate-limit")
+public class RateLimitProperties {
+
+    private boolean enabled = true;
+
+    //本地预取的令牌超过这个时间没用完就作废 避免节点囤积令牌
+    private Duration prefetchTtl = Duration.ofSeconds(1);
+
+    //可信的反向代理地址(ip或ipv4网段 如10.0.0.0/8) 只有直连地址在其中时才读取X-Forwarded-For
+    private List<String> trustedProxies = new ArrayList<>();
+
+    private List<Rule> rules = new ArrayList<>();
+
+    @Data
+    public static class Rule {
+        //规则名 用于redis key和指标标签
+        private String name;
+        //ant风格的路径
+        private String path;
+        private Dimension dimension = Dimension.API;
+        //桶容量 即允许的突发请求数
+        private long capacity;
+        //每秒补充的令牌数
+        private double rate;
+        //每次从redis预取到本地的令牌数 大于1时大部分请求只在本地扣减
+        private int prefetch = 1;
+    }
+
+    public enum Dimension {
+        //匹配这条规则的所有请求共用一个桶
+        API,
+        //每个具体路径一个桶 例如每张秒杀券一个桶
+        PATH,
+        //每个登录用户一个桶 未登录时按ip
+        USER,
+        //每个ip一个桶
+        IP
+    }
+}
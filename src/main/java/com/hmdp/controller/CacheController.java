@@ -0,0 +1,76 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.service.IShopService;
+import com.hmdp.utils.CacheClient;
+import org.springframework.web.bind.annotation.*;
+
+import javax.annotation.Resource;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * 缓存管理
+ * </p>
+ */
+@RestController
+@RequestMapping("/cache")
+public class CacheController {
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    /**
+     * 预热店铺缓存
+     * @return 预热的数量和耗时
+     */
+    @PostMapping("/warm-up/shop")
+    public Result warmUpShop() {
+        return shopService.warmUpCache();
+    }
+
+    /**
+     * 查看缓存key在未来一段时间内的过期分布
+     * @param pattern key的匹配模式
+     * @param minutes 统计未来多少分钟
+     * @return 每分钟过期的key数量
+     */
+    @GetMapping("/expiry-report")
+    public Result expiryReport(
+            @RequestParam(value = "pattern", defaultValue = "cache:*") String pattern,
+            @RequestParam(value = "minutes", defaultValue = "60") Integer minutes
+    ) {
+        return Result.ok(cacheClient.expiryReport(pattern, minutes));
+    }
+
+    /**
+     * 比较每个id一个key和分桶存储两种方式的内存占用
+     * @param prefix key前缀
+     * @param sample 每种方式最多抽样的key数
+     * @return 每条数据平均占用的字节数
+     */
+    @GetMapping("/memory-report")
+    public Result memoryReport(
+            @RequestParam(value = "prefix", defaultValue = "cache:shop:") String prefix,
+            @RequestParam(value = "sample", defaultValue = "100") Integer sample
+    ) {
+        return Result.ok(cacheClient.memoryReport(prefix, sample));
+    }
+
+    /**
+     * 查看本节点当前的热点key和Top-K候选
+     * @return hot: 持有本地副本的热点key top: 窗口内访问最多的key及次数
+     */
+    @GetMapping("/hot-keys")
+    public Result hotKeys() {
+        Map<String, Object> result = new HashMap<>();
+        result.put("hot", cacheClient.getHotKeys());
+        result.put("top", cacheClient.getTopKeys());
+        return Result.ok(result);
+    }
+}
@@ -13,4 +13,10 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface ISeckillVoucherService extends IService<SeckillVoucher> {
 
+    SeckillVoucher queryCachedById(Long voucherId);
+
+    void cacheAfterCommit(SeckillVoucher voucher);
+
+    void preloadVouchers();
+
 }
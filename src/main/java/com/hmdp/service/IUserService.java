@@ -2,6 +2,7 @@ package com.hmdp.service;
 
 import com.baomidou.mybatisplus.extension.service.IService;
 import com.hmdp.dto.LoginFormDTO;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.User;
 
@@ -24,4 +25,6 @@ public interface IUserService extends IService<User> {
     Result sign();
 
     Result signCount();
+
+    UserDTO queryUserDTOById(Long id);
 }
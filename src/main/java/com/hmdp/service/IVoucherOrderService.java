@@ -17,5 +17,4 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result seckillVoucher(Long voucherId);
 
-    Result createOrder(Long voucherId);
 }
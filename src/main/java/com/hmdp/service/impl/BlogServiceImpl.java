@@ -9,24 +9,32 @@ import com.hmdp.dto.ScrollResult;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
 import com.hmdp.entity.Follow;
-import com.hmdp.entity.User;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.HmCacheEvict;
+import com.hmdp.utils.HmCacheable;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
+import org.springframework.aop.framework.AopContext;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
+import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_BLOG_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_BLOG_TTL;
 import static com.hmdp.utils.RedisConstants.FEED_KEY;
 
 
@@ -50,6 +58,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     @Resource
     private IFollowService followService;
 
+    @Resource
+    private CacheClient cacheClient;
+
     @Override
     public Result queryHotBlog(Integer current) {
         // 根据用户查询
@@ -66,12 +77,26 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         return Result.ok(records);
     }
 
+    @Override
+    @HmCacheable(prefix = CACHE_BLOG_KEY, ttl = 30)
+    public Blog getById(Serializable id) {
+        return super.getById(id);
+    }
+
+    @Override
+    @HmCacheEvict(prefix = CACHE_BLOG_KEY, key = "entity.id")
+    public boolean updateById(Blog entity) {
+        return super.updateById(entity);
+    }
+
     @Override
     public Result queryBlogById(Long id) {
-        //1. 查询Blog
-        Blog blog = getById(id);
-        if(blog == null)
+        //1. 查询Blog 通过代理走缓存 缓存中的对象是共享的 复制一份再填充用户和点赞信息
+        IBlogService proxy = (IBlogService) AopContext.currentProxy();
+        Blog cached = proxy.getById(id);
+        if(cached == null)
             return Result.fail("博客不存在!");
+        Blog blog = BeanUtil.copyProperties(cached, Blog.class);
         //2. 查询与Blog相关的用户
         queryBlogUser(blog);
         //3. 查询Blog是否被点赞
@@ -104,6 +129,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             //3. 如果未点赞，可以点赞
             //3.1 数据库点赞数 + 1
             boolean isSuccess = update().setSql("liked = liked + 1").eq("id", id).update();
+            //点赞数变化 删除blog缓存
+            cacheClient.delete(CACHE_BLOG_KEY + id);
             //3.2 保存用户至redis中的set集合中  使用sortedSet
             if(isSuccess){
                 // stringRedisTemplate.opsForSet().add(key,userId.toString());
@@ -113,6 +140,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             //4. 如果已点赞
             //4.1 数据库点赞数 -1
             boolean isSuccess = update().setSql("liked = liked - 1").eq("id", id).update();
+            //点赞数变化 删除blog缓存
+            cacheClient.delete(CACHE_BLOG_KEY + id);
             //4.2 把用户从redis中的set集合中移出
             if(isSuccess){
                 // stringRedisTemplate.opsForSet().remove(key,userId.toString());
@@ -197,9 +226,13 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 os = 1;
             }
         }
-        //5. 根据id查询blog
-        String idStr = StrUtil.join(",", ids);
-        List<Blog> blogs = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
+        //5. 根据id批量查询blog 先查缓存 未命中的一次查库
+        List<Blog> blogs = cacheClient.queryBatchWithPassThrough(CACHE_BLOG_KEY, ids, Blog.class,
+                        this::queryBlogMap, CACHE_BLOG_TTL, TimeUnit.MINUTES)
+                .stream()
+                // 缓存中的对象是共享的 复制一份再填充用户和点赞信息
+                .map(blog -> BeanUtil.copyProperties(blog, Blog.class))
+                .collect(Collectors.toList());
         for (Blog blog : blogs) {
             //5.1 查询与Blog相关的用户
             queryBlogUser(blog);
@@ -214,9 +247,14 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         return Result.ok(r);
     }
 
+    //根据id批量查询blog id -> blog
+    private Map<Long, Blog> queryBlogMap(Collection<Long> ids){
+        return listByIds(ids).stream().collect(Collectors.toMap(Blog::getId, Function.identity()));
+    }
+
     private void queryBlogUser(Blog blog){
         Long userId = blog.getUserId();
-        User user = userService.getById(userId);
+        UserDTO user = userService.queryUserDTOById(userId);
         blog.setName(user.getNickName());
         blog.setIcon(user.getIcon());
     }
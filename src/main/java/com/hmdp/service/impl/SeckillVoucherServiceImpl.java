@@ -1,10 +1,50 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import cn.hutool.core.date.DatePattern;
+import cn.hutool.core.date.LocalDateTimeUtil;
+import cn.hutool.core.util.BooleanUtil;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.mapper.SeckillVoucherMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.ShardedStock;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.core.StreamOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_GROUP;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_KEY;
 
 /**
  * <p>
@@ -14,7 +54,211 @@ import org.springframework.stereotype.Service;
  * @author 虎哥
  * @since 2022-01-04
  */
+@Slf4j
 @Service
 public class SeckillVoucherServiceImpl extends ServiceImpl<SeckillVoucherMapper, SeckillVoucher> implements ISeckillVoucherService {
 
+    private static final String BEGIN_TIME = "beginTime";
+    private static final String END_TIME = "endTime";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer listenerContainer;
+
+    @Resource
+    private ShardedStock shardedStock;
+
+    @Value("${hmdp.seckill.voucher.local-ttl:5m}")
+    private Duration localTtl;
+    @Value("${hmdp.seckill.voucher.missing-ttl:30s}")
+    private Duration missingTtl;
+    @Value("${hmdp.seckill.voucher.local-capacity:1000}")
+    private int localCapacity;
+
+    //voucherId -> 开始结束时间 秒杀时只在内存中判断时间 不再查数据库
+    //voucherId来自请求路径 有容量上限 随机id只会挤掉最久没用的条目 过期条目在读取时淘汰
+    private LRUCache<Long, CachedVoucher> localCache;
+
+    //本地缓存的秒杀券 voucher为null表示不存在
+    private static class CachedVoucher {
+        private final SeckillVoucher voucher;
+
+        private CachedVoucher(SeckillVoucher voucher) {
+            this.voucher = voucher;
+        }
+    }
+
+    @PostConstruct
+    private void init(){
+        localCache = CacheUtil.newLRUCache(localCapacity, localTtl.toMillis());
+        //其他节点新增或修改了秒杀券 清除本地缓存 下次从redis读取
+        listenerContainer.addMessageListener((message, pattern) -> {
+            Long voucherId = Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8));
+            localCache.remove(voucherId);
+        }, new ChannelTopic(SECKILL_VOUCHER_CHANNEL));
+    }
+
+    /**
+     * 查询秒杀券的开始结束时间 依次查本地缓存、redis、数据库
+     * 返回的对象只有id和时间 库存以redis中的计数为准 不在这里返回
+     */
+    @Override
+    public SeckillVoucher queryCachedById(Long voucherId) {
+        //1. 查本地缓存
+        CachedVoucher cached = localCache.get(voucherId, false);
+        if(cached != null){
+            return cached.voucher;
+        }
+        //2. 查redis
+        Map<Object, Object> hash = stringRedisTemplate.opsForHash().entries(SECKILL_VOUCHER_KEY + voucherId);
+        SeckillVoucher voucher;
+        if(!hash.isEmpty()){
+            voucher = new SeckillVoucher()
+                    .setVoucherId(voucherId)
+                    .setBeginTime(LocalDateTimeUtil.parse((String) hash.get(BEGIN_TIME), DatePattern.NORM_DATETIME_PATTERN))
+                    .setEndTime(LocalDateTimeUtil.parse((String) hash.get(END_TIME), DatePattern.NORM_DATETIME_PATTERN));
+        }else {
+            //3. redis中没有 查数据库并写回redis
+            voucher = getById(voucherId);
+            if(voucher != null){
+                voucher = toMeta(voucher);
+                saveToRedis(voucher);
+            }
+        }
+        //4. 写入本地缓存 不存在的秒杀券也缓存一小段时间
+        long ttl = voucher == null ? missingTtl.toMillis() : localTtl.toMillis();
+        localCache.put(voucherId, new CachedVoucher(voucher), ttl);
+        return voucher;
+    }
+
+    /**
+     * 事务提交后把秒杀券时间写入redis 并通知所有节点清除本地缓存
+     * 提交前写入的话 回滚后redis中会留下不存在的秒杀券
+     */
+    @Override
+    public void cacheAfterCommit(SeckillVoucher voucher) {
+        SeckillVoucher meta = toMeta(voucher);
+        afterCommit(() -> {
+            saveToRedis(meta);
+            publishEvict(meta.getVoucherId());
+        });
+    }
+
+    //修改秒杀券后 提交事务再从数据库重新加载到redis
+    @Override
+    @Transactional
+    public boolean updateById(SeckillVoucher entity) {
+        boolean success = super.updateById(entity);
+        if(success && (entity.getBeginTime() != null || entity.getEndTime() != null)){
+            Long voucherId = entity.getVoucherId();
+            afterCommit(() -> {
+                SeckillVoucher voucher = getById(voucherId);
+                if(voucher != null){
+                    saveToRedis(toMeta(voucher));
+                }
+                publishEvict(voucherId);
+            });
+        }
+        return success;
+    }
+
+    /**
+     * 启动时预加载未结束的秒杀券 时间写入redis和本地缓存
+     * 之前没有写入redis库存的秒杀券 用数据库库存初始化redis计数 之后下单只扣减redis
+     * 数据库库存由消费者异步扣减 stream中还没有写入数据库的订单要从数据库库存中减掉 否则会超卖
+     * 先统计stream再查数据库: 两次查询之间被写入数据库的订单会被减两次 只会少卖
+     */
+    @Override
+    @EventListener(ApplicationReadyEvent.class)
+    public void preloadVouchers() {
+        Map<Long, Long> unpersisted = unpersistedOrderCounts();
+        List<SeckillVoucher> vouchers = query().gt("end_time", LocalDateTime.now()).list();
+        for (SeckillVoucher voucher : vouchers) {
+            SeckillVoucher meta = toMeta(voucher);
+            saveToRedis(meta);
+            localCache.put(meta.getVoucherId(), new CachedVoucher(meta));
+            if(!shardedStock.isSharded(voucher.getVoucherId())){
+                long stock = Math.max(0, voucher.getStock() - unpersisted.getOrDefault(voucher.getVoucherId(), 0L));
+                stringRedisTemplate.opsForValue()
+                        .setIfAbsent(SECKILL_STOCK_KEY + voucher.getVoucherId(), String.valueOf(stock));
+            }
+        }
+        log.info("秒杀券预加载完成, 共{}张", vouchers.size());
+    }
+
+    //stream.orders中还没有写入数据库的订单数 按优惠券统计: 已投递没有ACK的(pending) 和还没有投递的
+    private Map<Long, Long> unpersistedOrderCounts(){
+        StreamOperations<String, Object, Object> ops = stringRedisTemplate.opsForStream();
+        if(!BooleanUtil.isTrue(stringRedisTemplate.hasKey(SECKILL_ORDER_STREAM))){
+            return Collections.emptyMap();
+        }
+        //1. 最后投递的消息 之后的都还没有投递
+        RecordId lastDelivered = ops.groups(SECKILL_ORDER_STREAM).stream()
+                .filter(group -> SECKILL_ORDER_GROUP.equals(group.groupName()))
+                .findFirst()
+                .map(group -> RecordId.of(group.lastDeliveredId()))
+                .orElse(RecordId.of("0-0"));
+        //2. 已投递没有ACK的
+        Set<String> pending = new HashSet<>();
+        String start = lastDelivered.getValue();
+        PendingMessagesSummary summary = ops.pending(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP);
+        if(summary != null && summary.getTotalPendingMessages() > 0){
+            ops.pending(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP, Range.unbounded(), summary.getTotalPendingMessages())
+                    .forEach(message -> pending.add(message.getIdAsString()));
+            start = summary.minMessageId();
+        }
+        //3. 从最早的pending消息开始读 跳过已经ACK的
+        Map<Long, Long> counts = new HashMap<>();
+        List<MapRecord<String, Object, Object>> records = ops.range(SECKILL_ORDER_STREAM,
+                Range.rightUnbounded(Range.Bound.inclusive(start)));
+        for (MapRecord<String, Object, Object> record : records == null ? Collections.<MapRecord<String, Object, Object>>emptyList() : records) {
+            if(pending.contains(record.getId().getValue()) || after(record.getId(), lastDelivered)){
+                counts.merge(Long.valueOf((String) record.getValue().get("voucherId")), 1L, Long::sum);
+            }
+        }
+        return counts;
+    }
+
+    private static boolean after(RecordId id, RecordId other){
+        return id.getTimestamp() > other.getTimestamp()
+                || (id.getTimestamp().equals(other.getTimestamp()) && id.getSequence() > other.getSequence());
+    }
+
+    //只保留id和时间 库存会变化 不能缓存
+    private SeckillVoucher toMeta(SeckillVoucher voucher){
+        return new SeckillVoucher()
+                .setVoucherId(voucher.getVoucherId())
+                .setBeginTime(voucher.getBeginTime())
+                .setEndTime(voucher.getEndTime());
+    }
+
+    //秒杀结束一天后redis中的时间自动过期
+    private void saveToRedis(SeckillVoucher voucher){
+        String key = SECKILL_VOUCHER_KEY + voucher.getVoucherId();
+        Map<String, String> hash = new HashMap<>();
+        hash.put(BEGIN_TIME, LocalDateTimeUtil.formatNormal(voucher.getBeginTime()));
+        hash.put(END_TIME, LocalDateTimeUtil.formatNormal(voucher.getEndTime()));
+        stringRedisTemplate.opsForHash().putAll(key, hash);
+        stringRedisTemplate.expireAt(key, voucher.getEndTime().plusDays(1).atZone(ZoneId.systemDefault()).toInstant());
+    }
+
+    private void publishEvict(Long voucherId){
+        localCache.remove(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_VOUCHER_CHANNEL, voucherId.toString());
+    }
+
+    private void afterCommit(Runnable task){
+        if(TransactionSynchronizationManager.isSynchronizationActive()){
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    task.run();
+                }
+            });
+        }else {
+            task.run();
+        }
+    }
 }
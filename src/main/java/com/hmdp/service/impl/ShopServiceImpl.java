@@ -1,9 +1,6 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import com.baomidou.mybatisplus.core.conditions.update.UpdateWrapper;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
@@ -11,25 +8,37 @@ import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheRebuildExecutor;
+import com.hmdp.utils.RedisBloomFilter;
 import com.hmdp.utils.RedisConstants;
-import com.hmdp.utils.RedisData;
 import com.hmdp.utils.SystemConstants;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.data.geo.Distance;
 import org.springframework.data.geo.GeoResult;
 import org.springframework.data.geo.GeoResults;
 import org.springframework.data.redis.connection.RedisGeoCommands;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.domain.geo.GeoReference;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.time.LocalDateTime;
+import java.time.Duration;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -45,198 +54,199 @@ import static com.hmdp.utils.RedisConstants.*;
 @Service
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
 
+    //店铺列表需要的字段 营业时间、坐标、创建和更新时间不需要读取
+    private static final String[] SHOP_LIST_FIELDS = {
+            "id", "name", "typeId", "images", "area", "address", "avgPrice", "sold", "comments", "score"
+    };
+
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
     @Resource
     private CacheClient cacheClient;
 
+    @Resource
+    private CacheRebuildExecutor rebuildExecutor;
+
+    @Resource
+    private RedisBloomFilter shopBloomFilter;
+
+    @Value("${hmdp.cache.warm-up.on-startup:false}")
+    private boolean warmUpOnStartup;
+    @Value("${hmdp.cache.warm-up.hot-ids:}")
+    private Long[] warmUpHotIds;
+    @Value("${hmdp.cache.warm-up.batch-size:500}")
+    private int warmUpBatchSize;
+    @Value("${hmdp.cache.warm-up.parallelism:4}")
+    private int warmUpParallelism;
+    @Value("${hmdp.cache.warm-up.ttl:30m}")
+    private Duration warmUpTtl;
+
+    //防止同时执行多次预热
+    private final AtomicBoolean warmingUp = new AtomicBoolean(false);
+
+    @PostConstruct
+    public void init(){
+        cacheClient.registerBloomFilter(CACHE_SHOP_KEY, shopBloomFilter);
+        //用update_time做版本号 更新后旧数据不能再写回缓存
+        cacheClient.registerVersion(CACHE_SHOP_KEY, ShopServiceImpl::versionOf);
+        cacheClient.registerVersion(CACHE_SHOP_HASH_KEY, ShopServiceImpl::versionOf);
+    }
+
+    //启动时以及每天定时用全部店铺id重建布隆过滤器
+    @Override
+    @EventListener(ApplicationReadyEvent.class)
+    @Scheduled(cron = "${hmdp.bloom.shop.rebuild-cron:0 0 4 * * ?}")
+    public void rebuildBloomFilter() {
+        //所有节点都会触发 只有拿到锁的节点执行
+        AtomicInteger count = new AtomicInteger();
+        boolean rebuilt = shopBloomFilter.rebuild(() -> {
+            List<Object> ids = listObjs(query().select("id").getWrapper());
+            count.set(ids.size());
+            return ids;
+        });
+        if (rebuilt) {
+            log.info("店铺布隆过滤器重建完成, 共{}个id", count.get());
+        }
+    }
+
     @Override
     public Result queryById(Long id) {
-        // 缓存穿透
+        // 缓存穿透 改用其他方案时warmUpCache写入的格式也要一起改
         Shop shop = cacheClient.
-                queryWithPassThrough(CACHE_SHOP_KEY,id,Shop.class,this::getById,CACHE_SHOP_TTL,TimeUnit.MINUTES);
+                queryWithPassThrough(CACHE_SHOP_KEY,id,Shop.class,this::getById,CACHE_SHOP_TTL,TimeUnit.MINUTES,true);
 
         //使用互斥锁缓存击穿
-        //Shop shop = queryWithMutex(id);
+        //Shop shop = cacheClient.queryWithMutex(CACHE_SHOP_KEY,id,Shop.class,this::getById,CACHE_SHOP_TTL,TimeUnit.MINUTES,true);
+
+        //分桶存储 大量店铺和空值不再各占一个key
+        //Shop shop = cacheClient.queryBucketWithPassThrough(CACHE_SHOP_KEY,id,Shop.class,this::getById,CACHE_SHOP_TTL,TimeUnit.MINUTES);
 
         //使用逻辑过期时间解决缓存击穿
         //Shop shop = cacheClient.queryWithLogicExpire(CACHE_SHOP_KEY,id,Shop.class,this::getById,20L,TimeUnit.SECONDS);
 
+        //概率提前刷新 热点key过期前就被重建
+        //Shop shop = cacheClient.queryWithEarlyRefresh(CACHE_SHOP_KEY,id,Shop.class,this::getById,CACHE_SHOP_TTL,TimeUnit.MINUTES);
+
         if (shop==null) {
             return Result.fail("店铺信息不存在!");
         }
         return Result.ok(shop);
     }
 
-    //使用线程池开启线程
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
     //使用逻辑过期时间解决缓存击穿
     public Shop queryWithLogicExpire(Long id){
-        String key = RedisConstants.CACHE_SHOP_KEY;
-        //1. 从redis查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key+id);
-        //2. 判断redis中是否存在
-        //isNotBlank()对于空字符串""的返回值也是false
-        if(StrUtil.isBlank(shopJson)){
-            //3. 为空
-            return null;
-        }
+        return cacheClient.queryWithLogicExpire(CACHE_SHOP_KEY,id,Shop.class,this::getById,20L,TimeUnit.SECONDS);
+    }
 
-        //4. 命中，需要将json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(shopJson, RedisData.class);
-        JSONObject data = (JSONObject) redisData.getData();
-        Shop shop = JSONUtil.toBean(data, Shop.class);
-        LocalDateTime expireTime = redisData.getExpireTime();
+    //使用互斥锁解决缓存击穿
+    public Shop queryWithMutex(Long id){
+        return cacheClient.queryWithMutex(CACHE_SHOP_KEY,id,Shop.class,this::getById,CACHE_SHOP_TTL,TimeUnit.MINUTES);
+    }
 
-        //5. 判断是否过期
-        if(expireTime.isAfter(LocalDateTime.now())){
-            //5.1 未过期 直接返回店铺
-            return shop;
-        }
-        //5.2 过期 需要缓存重建
-        //6. 缓存重建
-        //6.1 获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
-        boolean isLock = tryLock(lockKey);
-        //6.2 判断是否获取锁成功
-        if (isLock) {
-            //6.3 成功，开启独立线程，实现缓存重建
-            //获取锁成功后应该再次检测redis缓存是否过期 做DoubleCheck 如果存在则无需重建缓存
-            CACHE_REBUILD_EXECUTOR.submit(()->{
-                try {
-                    //重建
-                    this.saveShop2Redis(id,20L);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }finally {
-                    //释放锁
-                    unlock(lockKey);
-                }
-            });
-        }
+    //缓存穿透
+    public Shop queryWithPassThrough(Long id){
+        return cacheClient.queryWithPassThrough(CACHE_SHOP_KEY,id,Shop.class,this::getById,CACHE_SHOP_TTL,TimeUnit.MINUTES);
+    }
 
-        //6.4 返回过期的商铺信息
-        return shop;
+    public void saveShop2Redis(Long id,Long expireSeconds) throws InterruptedException {
+        // 1. 数据库查询店铺数据
+        Shop shop = getById(id);
+        Thread.sleep(200);
+        // 2. 封装逻辑过期时间并写入redis
+        cacheClient.setWithLogicExpire(CACHE_SHOP_KEY+id,shop,expireSeconds,TimeUnit.SECONDS);
     }
 
-    //使用互斥锁解决缓存击穿
-    public Shop queryWithMutex(Long id){
-        String key = RedisConstants.CACHE_SHOP_KEY;
-        //1. 从redis查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key+id);
-        //2. 判断redis中是否存在
-        //isNotBlank()对于空字符串""的返回值也是false
-        if(StrUtil.isNotBlank(shopJson)){
-            //3. Redis中不是空值 直接返回商铺信息
-            Shop shop = JSONUtil.toBean(shopJson, Shop.class);
-            return shop;
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUpCacheOnStartup() {
+        if (warmUpOnStartup) {
+            warmUpCache();
         }
+    }
 
-        //判断命中的是否为空值
-        //""!=null 这里判断的是是否为""
-        if(shopJson!=null){
-            return null;
+    /**
+     * 预热店铺缓存 按批查询数据库 多线程并行编码并用pipeline写入redis
+     * 配置了热点id时只预热热点店铺 否则按id顺序分页预热整张表
+     */
+    @Override
+    public Result warmUpCache() {
+        if (!warmingUp.compareAndSet(false, true)) {
+            return Result.fail("缓存预热正在进行中!");
         }
-
-        //4. 实现缓存重建
-        //4.1 获取互斥锁
-        String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
-        Shop shop = null;
+        // 在共享的缓存重建线程池中写入 同时最多warmUpParallelism批 数据库读得比redis写得快时自动降速
+        Semaphore permits = new Semaphore(warmUpParallelism);
+        AtomicLong count = new AtomicLong();
+        long begin = System.currentTimeMillis();
         try {
-            boolean isLock = tryLock(lockKey);
-            //4.2 判断是否成功
-            if(!isLock){
-                //4.3 失败，则休眠后重试
-                Thread.sleep(50);
-                return queryWithMutex(id);
+            List<Future<?>> futures = new ArrayList<>();
+            if (warmUpHotIds.length > 0) {
+                // 1. 只预热热点id 每批并行查库并写入
+                List<Long> hotIds = Arrays.asList(warmUpHotIds);
+                for (int from = 0; from < hotIds.size(); from += warmUpBatchSize) {
+                    List<Long> batch = hotIds.subList(from, Math.min(from + warmUpBatchSize, hotIds.size()));
+                    futures.add(submitWarmUp(permits, () -> writeWarmUpBatch(listByIds(batch), count, begin)));
+                }
+            } else {
+                // 2. 按id顺序分页 用上一页最大id做条件 避免深分页
+                long lastId = 0;
+                while (true) {
+                    List<Shop> shops = query().gt("id", lastId).orderByAsc("id")
+                            .last("LIMIT " + warmUpBatchSize).list();
+                    if (shops.isEmpty()) {
+                        break;
+                    }
+                    lastId = shops.get(shops.size() - 1).getId();
+                    futures.add(submitWarmUp(permits, () -> writeWarmUpBatch(shops, count, begin)));
+                }
             }
-
-            //4.4 成功，根据id查询数据库
-            shop = getById(id);
-            //模拟重建的延时
-            Thread.sleep(200);
-
-            //5. 数据库中不存在，返回错误
-            if (shop == null) {
-                //将空值写入redis
-                stringRedisTemplate.opsForValue().set(key+id,"",CACHE_NULL_TTL, TimeUnit.MINUTES);
-                //返回错误信息
-                return null;
+            // 3. 等待全部写入完成
+            for (Future<?> future : futures) {
+                future.get();
             }
-
-            //6. 数据库存在，先写入redis 并设置过期时间  再返回
-            stringRedisTemplate.opsForValue().set(key+id,JSONUtil.toJsonStr(shop),CACHE_SHOP_TTL, TimeUnit.MINUTES);
         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new RuntimeException(e);
-        }finally {
-            //7. 释放互斥锁
-            unlock(lockKey);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            warmingUp.set(false);
         }
-
-        return shop;
+        long millis = Math.max(1, System.currentTimeMillis() - begin);
+        log.info("店铺缓存预热完成, 共{}条, 耗时{}ms, {}条/秒", count.get(), millis, count.get() * 1000 / millis);
+        Map<String, Object> report = new HashMap<>();
+        report.put("count", count.get());
+        report.put("millis", millis);
+        report.put("perSecond", count.get() * 1000 / millis);
+        return Result.ok(report);
     }
 
-    //缓存穿透
-    public Shop queryWithPassThrough(Long id){
-        String key = RedisConstants.CACHE_SHOP_KEY;
-        //1. 从redis查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key+id);
-        //2. 判断redis中是否存在
-        //isNotBlank()对于空字符串""的返回值也是false
-        if(StrUtil.isNotBlank(shopJson)){
-            //3. Redis中不是空值 直接返回商铺信息
-            Shop shop = JSONUtil.toBean(shopJson, Shop.class);
-            return shop;
-        }
-
-        //判断命中的是否为空值
-        //""!=null 这里判断的是是否为""
-        if(shopJson!=null){
-            return null;
-        }
-
-        //4. Redis中不存在，根据id查询数据库
-        Shop shop = getById(id);
-
-        //5. 数据库中不存在，返回错误
-        if (shop == null) {
-            //将空值写入redis
-            stringRedisTemplate.opsForValue().set(key+id,"",CACHE_NULL_TTL, TimeUnit.MINUTES);
-            //返回错误信息
-            return null;
-        }
-
-        //6. 数据库存在，先写入redis 并设置过期时间  再返回
-        stringRedisTemplate.opsForValue().set(key+id,JSONUtil.toJsonStr(shop),CACHE_SHOP_TTL, TimeUnit.MINUTES);
-
-        return shop;
+    //拿到许可才提交 任务结束后归还
+    private Future<?> submitWarmUp(Semaphore permits, Runnable batch) throws InterruptedException {
+        permits.acquire();
+        return rebuildExecutor.submitBulk(batch).whenComplete((v, e) -> permits.release());
     }
 
-
-    //获取互斥锁
-    private boolean tryLock(String key){
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
-        return BooleanUtil.isTrue(flag);
-    }
-
-    //释放锁
-    private void unlock(String key){
-        stringRedisTemplate.delete(key);
+    private void writeWarmUpBatch(List<Shop> shops, AtomicLong count, long begin) {
+        Map<String, Shop> values = new HashMap<>(shops.size());
+        for (Shop shop : shops) {
+            values.put(CACHE_SHOP_KEY + shop.getId(), shop);
+        }
+        // 写入的格式必须和queryById的读取方式一致 queryById用的是缓存穿透方案 所以写普通数据
+        cacheClient.setBatch(values, warmUpTtl.getSeconds(), TimeUnit.SECONDS, false);
+        long total = count.addAndGet(shops.size());
+        long millis = Math.max(1, System.currentTimeMillis() - begin);
+        log.debug("店铺缓存预热进度 {}条, {}条/秒", total, total * 1000 / millis);
     }
 
-
-    public void saveShop2Redis(Long id,Long expireSeconds) throws InterruptedException {
-        // 1. 数据库查询店铺数据
-        Shop shop = getById(id);
-        Thread.sleep(200);
-        // 2. 封装逻辑过期时间
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireSeconds));
-        //3. 写入redis
-        stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY+id,JSONUtil.toJsonStr(redisData));
-
+    //新增商铺
+    @Override
+    public Result saveShop(Shop shop) {
+        // 1. 写入数据库
+        save(shop);
+        // 2. 加入布隆过滤器
+        shopBloomFilter.add(shop.getId());
+        // 3. 返回店铺id
+        return Result.ok(shop.getId());
     }
 
     //更新商铺
@@ -248,26 +258,45 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         if(id==null){
             return Result.fail("店铺Id不能为空!");
         }
-        //1. 更新数据库
-        updateById(shop);
+        //1. 更新数据库 版本号在数据库中加1 不使用请求中传入的版本号
+        shop.setVersion(null);
+        boolean updated = update(shop, new UpdateWrapper<Shop>().eq("id", id).setSql("version = version + 1"));
+        if(!updated){
+            return Result.fail("店铺不存在!");
+        }
+        //事务中读取自己刚写入的版本号 行锁保证并发更新得到的版本号严格递增
+        Long version = query().select("version").eq("id", id).one().getVersion();
 
-        //2. 删除缓存
-        stringRedisTemplate.delete(RedisConstants.CACHE_SHOP_KEY + shop.getId());
+        //2. 事务提交后删除缓存并记录新版本号 延迟后再删一次 同时通知各节点清理本地缓存
+        cacheClient.deleteAfterCommit(RedisConstants.CACHE_SHOP_KEY + id, version);
+        cacheClient.deleteAfterCommit(CACHE_SHOP_HASH_KEY + id, version);
+        cacheClient.deleteFromBucketAfterCommit(CACHE_SHOP_KEY, id);
 
         return Result.ok();
     }
 
+    //店铺数据的版本号 数据库中的version列
+    private static Long versionOf(Shop shop){
+        return shop == null ? null : shop.getVersion();
+    }
+
 
     @Override
     public Result queryShopByType(Integer typeId, Integer current, Double x, Double y) {
         // 1. 判断是否需要根据坐标查询
         if (x == null || y == null){
-            // 不需要坐标查询 根据数据库查询
+            // 不需要坐标查询 数据库只查id 列表需要的字段从hash缓存中读取
             Page<Shop> page = query()
+                    .select("id")
                     .eq("type_id", typeId)
                     .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE));
+            List<Long> ids = page.getRecords().stream().map(Shop::getId).collect(Collectors.toList());
+            if(ids.isEmpty()){
+                return Result.ok(Collections.emptyList());
+            }
             // 返回数据
-            return Result.ok(page.getRecords());
+            return Result.ok(cacheClient.queryBatchHashWithPassThrough(CACHE_SHOP_HASH_KEY, ids, Shop.class,
+                    SHOP_LIST_FIELDS, this::queryShopMap, CACHE_SHOP_TTL, TimeUnit.MINUTES));
         }
 
         // 2. 计算分页参数
@@ -305,16 +334,20 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             distanceMap.put(shopIdStr, distance);
         });
 
-        // 5. 根据id查询shop
-        String idStr = StrUtil.join(",", ids);
-        log.info("嘻嘻嘻");
-        List<Shop> shops = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
+        // 5. 根据id批量查询shop 只读取列表需要的字段 未命中的一次查库
+        List<Shop> shops = cacheClient.queryBatchHashWithPassThrough(CACHE_SHOP_HASH_KEY, ids, Shop.class,
+                SHOP_LIST_FIELDS, this::queryShopMap, CACHE_SHOP_TTL, TimeUnit.MINUTES);
         for (Shop shop : shops) {
-            log.info("啦啦啦啦啦");
+            // hash查询每次都返回新对象 可以直接设置距离
             shop.setDistance(distanceMap.get(shop.getId().toString()).getValue());
         }
 
         // 6. 返回
         return Result.ok(shops);
     }
+
+    //根据id批量查询店铺 id -> shop
+    private Map<Long, Shop> queryShopMap(Collection<Long> ids){
+        return listByIds(ids).stream().collect(Collectors.toMap(Shop::getId, Function.identity()));
+    }
 }
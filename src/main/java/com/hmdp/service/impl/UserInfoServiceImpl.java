@@ -4,8 +4,14 @@ import com.hmdp.entity.UserInfo;
 import com.hmdp.mapper.UserInfoMapper;
 import com.hmdp.service.IUserInfoService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.HmCacheEvict;
+import com.hmdp.utils.HmCacheable;
 import org.springframework.stereotype.Service;
 
+import java.io.Serializable;
+
+import static com.hmdp.utils.RedisConstants.CACHE_USER_INFO_KEY;
+
 /**
  * <p>
  *  服务实现类
@@ -17,4 +23,15 @@ import org.springframework.stereotype.Service;
 @Service
 public class UserInfoServiceImpl extends ServiceImpl<UserInfoMapper, UserInfo> implements IUserInfoService {
 
+    @Override
+    @HmCacheable(prefix = CACHE_USER_INFO_KEY, ttl = 30)
+    public UserInfo getById(Serializable id) {
+        return super.getById(id);
+    }
+
+    @Override
+    @HmCacheEvict(prefix = CACHE_USER_INFO_KEY, key = "entity.userId")
+    public boolean updateById(UserInfo entity) {
+        return super.updateById(entity);
+    }
 }
@@ -11,6 +11,8 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.HmCacheEvict;
+import com.hmdp.utils.HmCacheable;
 import com.hmdp.utils.RegexUtils;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
@@ -190,4 +192,18 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         save(user);
         return user;
     }
+
+    //只缓存可以公开的字段 密码等字段不能写入redis
+    @Override
+    @HmCacheable(prefix = CACHE_USER_KEY, ttl = 30)
+    public UserDTO queryUserDTOById(Long id) {
+        User user = getById(id);
+        return user == null ? null : BeanUtil.copyProperties(user, UserDTO.class);
+    }
+
+    @Override
+    @HmCacheEvict(prefix = CACHE_USER_KEY, key = "entity.id")
+    public boolean updateById(User entity) {
+        return super.updateById(entity);
+    }
 }
@@ -1,5 +1,8 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
@@ -7,20 +10,67 @@ import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.RedisDelayQueue;
 import com.hmdp.utils.RedisIdWorker;
-import com.hmdp.utils.SimpleRedisLock;
+import com.hmdp.utils.ShardedStock;
+import com.hmdp.utils.SoldOutRegistry;
 import com.hmdp.utils.UserHolder;
-import lombok.Synchronized;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
+import io.lettuce.core.models.stream.ClaimedMessages;
+import io.lettuce.core.StreamMessage;
+import io.lettuce.core.XAutoClaimArgs;
+import io.lettuce.core.api.async.RedisStreamAsyncCommands;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
-import javax.print.DocFlavor;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.ORDER_TIMEOUT_QUEUE;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_GROUP;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
 
 /**
  * <p>
@@ -30,6 +80,7 @@ import java.time.LocalDateTime;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder> implements IVoucherOrderService {
 
@@ -43,99 +94,548 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private StringRedisTemplate stringRedisTemplate;
 
     @Resource
-    private RedissonClient redissonClient;
+    private TransactionTemplate transactionTemplate;
 
-    @Override
-    public Result seckillVoucher(Long voucherId) {
-        //1. 根据优惠券id查信息
-        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+    @Resource
+    private MeterRegistry meterRegistry;
 
-        //2. 判断秒杀是否开始
-        if(voucher.getBeginTime().isAfter(LocalDateTime.now())){
-            return Result.fail("秒杀尚未开始!");
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
+    @Resource
+    private ShardedStock shardedStock;
+
+    @Resource
+    private RedisDelayQueue delayQueue;
+
+    //秒杀资格判断 库存和一人一单在redis中原子完成
+    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    static {
+        SECKILL_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
+        SECKILL_SCRIPT.setResultType(Long.class);
+    }
+
+    //订单取消时归还redis库存并清除一人一单的记录
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+    static {
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("seckill_release.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    //订单状态 未支付和已取消
+    private static final int STATUS_UNPAID = 1;
+    private static final int STATUS_CANCELLED = 4;
+
+    //消费订单消息的线程
+    private ExecutorService seckillOrderExecutor;
+    //消费分片stream的线程 每个分片stream一个消费者
+    private ExecutorService shardOrderExecutor;
+    //分片stream -> 消费者
+    private final Map<String, VoucherOrderHandler> shardHandlers = new ConcurrentHashMap<>();
+
+    @Value("${hmdp.seckill.stream.consumers:2}")
+    private int consumers;
+    @Value("${hmdp.seckill.stream.batch-size:100}")
+    private int batchSize;
+    @Value("${hmdp.seckill.stream.block:2s}")
+    private Duration block;
+    @Value("${hmdp.seckill.stream.reclaim-min-idle:60s}")
+    private Duration reclaimMinIdle;
+    @Value("${hmdp.seckill.stream.error-backoff:1s}")
+    private Duration errorBackoff;
+    //超过这个时间没有支付的订单自动取消
+    @Value("${hmdp.seckill.order-timeout.timeout:15m}")
+    private Duration orderTimeout;
+    @Value("${hmdp.seckill.order-timeout.batch-size:200}")
+    private int timeoutBatchSize;
+    @Value("${hmdp.seckill.order-timeout.retry:30s}")
+    private Duration timeoutRetry;
+
+    //本节点消费者名称的前缀 pid@host
+    private final String consumerPrefix = ManagementFactory.getRuntimeMXBean().getName();
+
+    private volatile boolean running = true;
+
+    //队列指标
+    private DistributionSummary batchSizeSummary;
+    private Timer persistTimer;
+    private Counter reclaimedCounter;
+    private Counter timeoutCancelledCounter;
+    private final AtomicLong timeoutPending = new AtomicLong();
+    private final AtomicLong pendingCount = new AtomicLong();
+    private final AtomicLong streamLength = new AtomicLong();
+    private final AtomicLong lagMillis = new AtomicLong();
+
+    @PostConstruct
+    private void init(){
+        //1. 创建消费者组 队列不存在时一起创建
+        createGroupIfAbsent(SECKILL_ORDER_STREAM);
+        //2. 注册指标
+        batchSizeSummary = DistributionSummary.builder("seckill.order.batch.size").register(meterRegistry);
+        persistTimer = Timer.builder("seckill.order.persist").register(meterRegistry);
+        reclaimedCounter = meterRegistry.counter("seckill.order.reclaimed");
+        timeoutCancelledCounter = meterRegistry.counter("seckill.order.timeout.cancelled");
+        Gauge.builder("seckill.order.timeout.pending", timeoutPending, AtomicLong::get).register(meterRegistry);
+        Gauge.builder("seckill.order.pending", pendingCount, AtomicLong::get).register(meterRegistry);
+        Gauge.builder("seckill.order.stream.length", streamLength, AtomicLong::get).register(meterRegistry);
+        Gauge.builder("seckill.order.lag", lagMillis, AtomicLong::get).baseUnit("milliseconds").register(meterRegistry);
+        //3. 启动消费线程
+        AtomicInteger index = new AtomicInteger();
+        seckillOrderExecutor = Executors.newFixedThreadPool(consumers, r -> {
+            Thread thread = new Thread(r, "seckill-order-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < consumers; i++) {
+            seckillOrderExecutor.submit(new VoucherOrderHandler(SECKILL_ORDER_STREAM, consumerPrefix + "-" + i));
         }
+        AtomicInteger shardIndex = new AtomicInteger();
+        shardOrderExecutor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "seckill-order-shard-" + shardIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        refreshShardConsumers();
+    }
 
-        //3. 是否结束
-        if(voucher.getEndTime().isBefore(LocalDateTime.now())){
-            return Result.fail("秒杀已经结束！");
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        //不再读取新消息 正在处理的批次处理完再退出 没有ACK的消息之后会被重新认领
+        running = false;
+        seckillOrderExecutor.shutdown();
+        shardOrderExecutor.shutdown();
+        seckillOrderExecutor.awaitTermination(block.toMillis() * 2, TimeUnit.MILLISECONDS);
+        shardOrderExecutor.awaitTermination(block.toMillis() * 2, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 为注册的分片秒杀券的每个分片stream启动一个消费者 分片stream和分片库存在同一个slot 只能单独读取
+     * 秒杀结束并且分片stream中的订单都处理完之后 停止消费者并注销这张券
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.stream.shard-refresh-millis:5000}")
+    public void refreshShardConsumers(){
+        try {
+            Set<String> streams = new HashSet<>();
+            for (Long voucherId : shardedStock.shardedVouchers()) {
+                List<String> voucherStreams = shardedStock.orderStreams(voucherId);
+                if(isFinished(voucherId) && voucherStreams.stream().allMatch(this::isDrained)){
+                    shardedStock.unregister(voucherId);
+                    stringRedisTemplate.delete(voucherStreams);
+                    log.info("秒杀券{}已结束 停止分片订单消费者", voucherId);
+                    continue;
+                }
+                streams.addAll(voucherStreams);
+            }
+            //1. 新注册的分片stream 创建消费者组并启动消费者
+            for (String stream : streams) {
+                shardHandlers.computeIfAbsent(stream, s -> {
+                    createGroupIfAbsent(s);
+                    VoucherOrderHandler handler = new VoucherOrderHandler(s, consumerPrefix + "-" + s);
+                    shardOrderExecutor.submit(handler);
+                    return handler;
+                });
+            }
+            //2. 已经注销的分片stream 停止消费者
+            shardHandlers.entrySet().removeIf(entry -> {
+                if(streams.contains(entry.getKey())){
+                    return false;
+                }
+                entry.getValue().active = false;
+                return true;
+            });
+        } catch (Exception e) {
+            log.error("刷新分片订单消费者异常", e);
         }
+    }
 
-        //4. 库存是否充足
-        if (voucher.getStock()<1) {
-            return Result.fail("库存不足！");
+    //秒杀券已经结束或者不存在
+    private boolean isFinished(Long voucherId){
+        SeckillVoucher voucher = seckillVoucherService.queryCachedById(voucherId);
+        return voucher == null || voucher.getEndTime().isBefore(LocalDateTime.now());
+    }
+
+    //stream中的消息都已投递并ACK
+    private boolean isDrained(String stream){
+        if(!BooleanUtil.isTrue(stringRedisTemplate.hasKey(stream))){
+            return true;
         }
+        StreamInfo.XInfoStream info = stringRedisTemplate.opsForStream().info(stream);
+        return stringRedisTemplate.opsForStream().groups(stream).stream()
+                .filter(group -> SECKILL_ORDER_GROUP.equals(group.groupName()))
+                .anyMatch(group -> group.pendingCount() == 0
+                        && Objects.equals(group.lastDeliveredId(), info.lastGeneratedId()));
+    }
 
-        Long userId = UserHolder.getUser().getId();
-        //intern()方法 锁定范围
-       // synchronized (userId.toString().intern()){
-            //获取代理对象(事务)
-            //aspectjweaver
+    //主stream和本节点正在消费的分片stream
+    private List<String> orderStreams(){
+        List<String> streams = new ArrayList<>(shardHandlers.size() + 1);
+        streams.add(SECKILL_ORDER_STREAM);
+        streams.addAll(shardHandlers.keySet());
+        return streams;
+    }
 
-        //创建锁对象
-        //SimpleRedisLock lock = new SimpleRedisLock("order" + userId, stringRedisTemplate);
-        //使用redisson
-        RLock lock = redissonClient.getLock("lock:order" + userId);
-        //获取锁 非阻塞
-        boolean isLock = lock.tryLock();
-        if(!isLock){
-            //获取失败
-            return Result.fail("不允许重复下单!");
+    private void createGroupIfAbsent(String stream){
+        try {
+            stringRedisTemplate.execute((RedisCallback<Object>) c -> c.execute("XGROUP",
+                    bytes("CREATE"), bytes(stream), bytes(SECKILL_ORDER_GROUP), bytes("0"), bytes("MKSTREAM")));
+        } catch (Exception e) {
+            //BUSYGROUP 消费者组已经存在
+            log.debug("消费者组已存在: {}", e.getMessage());
         }
+    }
+
+    //从消息队列中批量读取订单写入数据库
+    private class VoucherOrderHandler implements Runnable {
+
+        private final String stream;
+        private final String consumerName;
+        //分片stream注销后停止
+        private volatile boolean active = true;
 
-        try{
-            // 获取代理对象(事务)
-            IVoucherOrderService proxy = (IVoucherOrderService) AopContext.currentProxy();
-            return proxy.createOrder(voucherId);
-        }finally {
-            lock.unlock();
+        private VoucherOrderHandler(String stream, String consumerName) {
+            this.stream = stream;
+            this.consumerName = consumerName;
         }
 
+        @Override
+        public void run() {
+            while (running && active){
+                try {
+                    //1. 获取消息队列中的订单 XREADGROUP GROUP g1 c1 COUNT n BLOCK 2000 STREAMS stream.orders >
+                    List<MapRecord<String, Object, Object>> list = readOrders(stream, consumerName);
+                    //2. 没有消息 继续下一次循环
+                    if(list == null || list.isEmpty()){
+                        continue;
+                    }
+                    //3. 一次事务写入整批订单 提交后ACK
+                    handleVoucherOrders(stream, list);
+                } catch (Exception e) {
+                    //处理失败的消息留在pending-list中 由认领任务重新处理
+                    log.error("处理订单异常", e);
+                    //redis或数据库不可用时 休眠一会再重试 避免空转刷日志
+                    try {
+                        Thread.sleep(errorBackoff.toMillis());
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+    }
 
-       //}
+    //只读一个stream 泛型可变参数在这里创建 StreamOffset<String>[]是类型安全的
+    @SuppressWarnings("unchecked")
+    private List<MapRecord<String, Object, Object>> readOrders(String stream, String consumerName){
+        return stringRedisTemplate.opsForStream().read(
+                Consumer.from(SECKILL_ORDER_GROUP, consumerName),
+                StreamReadOptions.empty().count(batchSize).block(block),
+                StreamOffset.create(stream, ReadOffset.lastConsumed())
+        );
     }
 
-    @Transactional
-    public Result createOrder(Long voucherId) {
-        //5. 一人一单
-        Long userId = UserHolder.getUser().getId();
+    private void handleVoucherOrders(String stream, List<MapRecord<String, Object, Object>> records){
+        List<VoucherOrder> orders = new ArrayList<>(records.size());
+        for (MapRecord<String, Object, Object> record : records) {
+            orders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+        }
+        batchSizeSummary.record(orders.size());
+        persistTimer.record(() -> transactionTemplate.executeWithoutResult(status -> createVoucherOrders(orders)));
+        //事务提交之后再ACK
+        stringRedisTemplate.opsForStream().acknowledge(stream, SECKILL_ORDER_GROUP,
+                records.stream().map(MapRecord::getId).toArray(RecordId[]::new));
+    }
 
-        //5.1查询订单
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherId).count();
-        //5.2 判断是否存在
-        if(count>0){
-            //用户已经购买过了
-            return Result.fail("用户已经购买过一次!");
+    //批量写入订单 重复投递的订单跳过 每张券只扣一次库存
+    private void createVoucherOrders(List<VoucherOrder> orders){
+        //1. 过滤掉已经写入的订单(消息被重复投递)
+        List<Long> ids = orders.stream().map(VoucherOrder::getId).collect(Collectors.toList());
+        Set<Long> existing = query().select("id").in("id", ids).list()
+                .stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+        List<VoucherOrder> fresh = orders.stream()
+                .filter(order -> !existing.contains(order.getId()))
+                .collect(Collectors.toList());
+        if(fresh.isEmpty()){
+            return;
         }
+        //2. 按优惠券扣减库存 redis中已经判断过库存 这里的条件只是兜底
+        Map<Long, Long> counts = fresh.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.counting()));
+        counts.forEach((voucherId, count) -> {
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + count)
+                    .eq("voucher_id", voucherId).ge("stock", count)
+                    .update();
+            if(!success){
+                throw new IllegalStateException("数据库库存不足, voucherId=" + voucherId + ", count=" + count);
+            }
+        });
+        //3. 一条insert写入所有订单 状态和下单时间显式写入 不依赖表的默认值
+        LocalDateTime now = LocalDateTime.now();
+        fresh.forEach(order -> order.setStatus(STATUS_UNPAID).setCreateTime(now));
+        getBaseMapper().insertBatch(fresh);
+        //4. 加入超时取消队列 事务回滚时队列中会留下不存在的订单 取消时直接跳过
+        long deadline = System.currentTimeMillis() + orderTimeout.toMillis();
+        delayQueue.offer(ORDER_TIMEOUT_QUEUE, fresh.stream()
+                .collect(Collectors.toMap(order -> order.getId().toString(), order -> deadline)));
+    }
+
+    //定期取出到期的订单 没有支付的取消并归还库存 一次取满一批说明还有积压 继续取
+    @Scheduled(fixedDelayString = "${hmdp.seckill.order-timeout.poll-millis:1000}")
+    public void cancelTimeoutOrders(){
+        List<String> ids;
+        do {
+            ids = delayQueue.poll(ORDER_TIMEOUT_QUEUE, timeoutBatchSize, timeoutRetry.toMillis());
+            if(ids.isEmpty()){
+                break;
+            }
+            try {
+                cancelOrders(ids);
+                delayQueue.ack(ORDER_TIMEOUT_QUEUE, ids);
+            } catch (Exception e) {
+                //没有ack的订单到重试时间后会被再次取出
+                log.error("取消超时订单异常, ids={}", ids, e);
+                break;
+            }
+        } while (running && ids.size() == timeoutBatchSize);
+        timeoutPending.set(delayQueue.size(ORDER_TIMEOUT_QUEUE));
+    }
 
-        //CAS乐观锁解决超卖
-        //6. 扣减库存  mybatis-plus  针对seckill-voucher表
-        boolean success = seckillVoucherService.update()
-                .setSql("stock = stock - 1")
-                .eq("voucher_id", voucherId).gt("stock",0) //where条件  gt判断stock是否>0
-                .update();
-        if(!success){
-            return Result.fail("库存不足!");
+    /**
+     * 取消一批超时订单 已支付、已取消和不存在的订单跳过
+     * 数据库中改状态和加库存在一个事务中 提交后只为这次条件更新成功的订单归还redis库存
+     * 提交后归还redis前挂掉的话 redis中少了这几个库存 只会少卖不会超卖
+     */
+    private void cancelOrders(List<String> ids){
+        //1. 查询订单 只处理未支付的
+        List<VoucherOrder> orders = listByIds(ids.stream().map(Long::valueOf).collect(Collectors.toList()))
+                .stream()
+                .filter(order -> Objects.equals(order.getStatus(), STATUS_UNPAID))
+                .collect(Collectors.toList());
+        if(orders.isEmpty()){
+            return;
         }
+        //2. 取消未支付的订单 按优惠券归还数据库库存 返回这次真正取消的订单
+        List<VoucherOrder> cancelled = transactionTemplate.execute(status -> {
+            List<VoucherOrder> changed = new ArrayList<>();
+            Map<Long, Integer> counts = new HashMap<>();
+            for (VoucherOrder order : orders) {
+                //条件更新 和支付或其他节点的取消同时发生时只有一个成功
+                boolean success = update()
+                        .set("status", STATUS_CANCELLED)
+                        .eq("id", order.getId()).eq("status", STATUS_UNPAID)
+                        .update();
+                if(success){
+                    changed.add(order);
+                    counts.merge(order.getVoucherId(), 1, Integer::sum);
+                }
+            }
+            counts.forEach((voucherId, count) -> seckillVoucherService.update()
+                    .setSql("stock = stock + " + count)
+                    .eq("voucher_id", voucherId)
+                    .update());
+            return changed;
+        });
+        if(cancelled == null || cancelled.isEmpty()){
+            return;
+        }
+        timeoutCancelledCounter.increment(cancelled.size());
+        //3. 归还redis库存并清除一人一单的记录 有库存归还的券清除售罄标记
+        Set<Long> released = new HashSet<>();
+        for (VoucherOrder order : cancelled) {
+            Long voucherId = order.getVoucherId();
+            Long userId = order.getUserId();
+            if(shardedStock.isSharded(voucherId)){
+                shardedStock.release(voucherId, userId);
+            }else {
+                stringRedisTemplate.execute(RELEASE_SCRIPT,
+                        Arrays.asList(SECKILL_STOCK_KEY + voucherId, SECKILL_ORDER_KEY + voucherId), userId.toString());
+            }
+            released.add(voucherId);
+        }
+        released.forEach(soldOutRegistry::reset);
+    }
+
+    //定期认领空闲太久的pending消息(消费者挂了或处理失败) XAUTOCLAIM
+    @Scheduled(fixedDelayString = "${hmdp.seckill.stream.reclaim-millis:30000}")
+    public void reclaimPendingOrders(){
+        for (String stream : orderStreams()) {
+            reclaimPendingOrders(stream);
+        }
+    }
+
+    private void reclaimPendingOrders(String stream){
+        String consumerName = consumerPrefix + "-reclaim";
+        String start = "0-0";
+        do {
+            ClaimedMessages<byte[], byte[]> claimed = autoClaim(stream, consumerName, start);
+            if(claimed == null){
+                return;
+            }
+            List<MapRecord<String, Object, Object>> records = new ArrayList<>();
+            for (StreamMessage<byte[], byte[]> message : claimed.getMessages()) {
+                Map<Object, Object> value = new HashMap<>();
+                message.getBody().forEach((k, v) -> value.put(str(k), str(v)));
+                records.add(MapRecord.create(stream, value).withId(RecordId.of(message.getId())));
+            }
+            if(!records.isEmpty()){
+                reclaimedCounter.increment(records.size());
+                reclaim(stream, records);
+            }
+            start = claimed.getId();
+        } while (running && !"0-0".equals(start));
+    }
 
+    private ClaimedMessages<byte[], byte[]> autoClaim(String stream, String consumerName, String start){
+        return stringRedisTemplate.execute((RedisCallback<ClaimedMessages<byte[], byte[]>>) c -> {
+            @SuppressWarnings("unchecked")
+            RedisStreamAsyncCommands<byte[], byte[]> commands = (RedisStreamAsyncCommands<byte[], byte[]>) c.getNativeConnection();
+            XAutoClaimArgs<byte[]> args = XAutoClaimArgs.Builder
+                    .xautoclaim(io.lettuce.core.Consumer.from(bytes(SECKILL_ORDER_GROUP), bytes(consumerName)),
+                            reclaimMinIdle, start)
+                    .count(batchSize);
+            try {
+                return commands.xautoclaim(bytes(stream), args).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                log.error("认领pending订单失败", e.getCause());
+                return null;
+            }
+        });
+    }
 
-        //7. 创建订单
-        VoucherOrder voucherOrder = new VoucherOrder();
-        //7.1 订单ID
-        long orderID = redisIdWorker.nextId("order");
-        voucherOrder.setId(orderID);
+    //认领到的消息先整批处理 失败再逐条处理 逐条也失败的留在pending-list中
+    private void reclaim(String stream, List<MapRecord<String, Object, Object>> records){
+        try {
+            handleVoucherOrders(stream, records);
+            return;
+        } catch (Exception e) {
+            log.error("批量处理pending订单异常 改为逐条处理", e);
+        }
+        for (MapRecord<String, Object, Object> record : records) {
+            try {
+                handleVoucherOrders(stream, Collections.singletonList(record));
+            } catch (Exception e) {
+                log.error("处理pending订单异常, id={}", record.getId(), e);
+            }
+        }
+    }
 
-        //7.2 用户ID
+    //定期采集队列长度、pending数量和消费延迟(最新消息与最后投递消息的时间差) 分片stream累加 延迟取最大值
+    @Scheduled(fixedDelayString = "${hmdp.seckill.stream.metrics-millis:5000}")
+    public void sampleStreamMetrics(){
+        long length = 0;
+        long pending = 0;
+        long lag = 0;
+        for (String stream : orderStreams()) {
+            try {
+                StreamInfo.XInfoStream info = stringRedisTemplate.opsForStream().info(stream);
+                length += info.streamLength();
+                StreamInfo.XInfoGroup group = stringRedisTemplate.opsForStream().groups(stream).stream()
+                        .filter(g -> SECKILL_ORDER_GROUP.equals(g.groupName()))
+                        .findFirst()
+                        .orElse(null);
+                if(group != null){
+                    pending += group.pendingCount();
+                    lag = Math.max(lag, idMillis(info.lastGeneratedId()) - idMillis(group.lastDeliveredId()));
+                }
+            } catch (Exception e) {
+                log.debug("采集订单队列指标失败: {}", e.getMessage());
+            }
+        }
+        streamLength.set(length);
+        pendingCount.set(pending);
+        lagMillis.set(lag);
+    }
 
-        voucherOrder.setUserId(userId);
+    /**
+     * 定期删除已经ACK的订单消息 XTRIM MINID ~ 最早的pending消息(没有pending时为最后投递的消息)
+     * 比它早的消息都已经投递并ACK 还没有投递和没有ACK的消息不会被删除
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.stream.trim-millis:60000}")
+    public void trimStreams(){
+        for (String stream : orderStreams()) {
+            try {
+                String minId = stringRedisTemplate.opsForStream().groups(stream).stream()
+                        .filter(group -> SECKILL_ORDER_GROUP.equals(group.groupName()))
+                        .findFirst()
+                        .map(group -> group.pendingCount() > 0
+                                ? stringRedisTemplate.opsForStream().pending(stream, SECKILL_ORDER_GROUP).minMessageId()
+                                : group.lastDeliveredId())
+                        .orElse(null);
+                if(minId == null){
+                    continue;
+                }
+                stringRedisTemplate.execute((RedisCallback<Object>) c -> c.execute("XTRIM",
+                        bytes(stream), bytes("MINID"), bytes("~"), bytes(minId)));
+            } catch (Exception e) {
+                log.debug("清理订单队列失败: {}", e.getMessage());
+            }
+        }
+    }
 
-        //7.3 代金券ID
-        voucherOrder.setVoucherId(voucherId);
+    //消息id的前半部分是毫秒时间戳
+    private static long idMillis(String id){
+        return Long.parseLong(StrUtil.subBefore(id, "-", false));
+    }
 
-        //order表
-        save(voucherOrder);
+    private static byte[] bytes(String s){
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
 
-        return Result.ok(orderID);
+    private static String str(byte[] b){
+        return new String(b, StandardCharsets.UTF_8);
+    }
 
+    @Override
+    public Result seckillVoucher(Long voucherId) {
+        //0. 本节点已经知道售罄 直接拒绝 不访问redis和数据库
+        if(soldOutRegistry.isSoldOut(voucherId)){
+            return Result.fail("库存不足！");
+        }
+
+        //1. 根据优惠券id查开始结束时间 优先从本地缓存中取 不访问数据库
+        SeckillVoucher voucher = seckillVoucherService.queryCachedById(voucherId);
+        if(voucher == null){
+            return Result.fail("秒杀券不存在!");
+        }
+
+        //2. 判断秒杀是否开始
+        if(voucher.getBeginTime().isAfter(LocalDateTime.now())){
+            return Result.fail("秒杀尚未开始!");
+        }
+
+        //3. 是否结束
+        if(voucher.getEndTime().isBefore(LocalDateTime.now())){
+            return Result.fail("秒杀已经结束！");
+        }
+
+        //4. 执行lua脚本 判断库存和一人一单 有资格则扣减库存、记录用户并把订单发送到消息队列
+        Long userId = UserHolder.getUser().getId();
+        long orderId = redisIdWorker.nextId("order");
+        int r;
+        if(shardedStock.isSharded(voucherId)){
+            //分段库存 扣减成功的脚本同时发送订单消息
+            r = shardedStock.tryAcquire(voucherId, userId, orderId);
+        }else {
+            Long result = stringRedisTemplate.execute(SECKILL_SCRIPT,
+                    Arrays.asList(SECKILL_STOCK_KEY + voucherId, SECKILL_ORDER_KEY + voucherId, SECKILL_ORDER_STREAM),
+                    userId.toString(), voucherId.toString(), String.valueOf(orderId));
+            r = result == null ? 3 : result.intValue();
+        }
+        if(r == 1){
+            //库存不足 标记并通知其他节点
+            soldOutRegistry.markSoldOut(voucherId);
+        }
+        if(r != 0){
+            return Result.fail(r == 1 ? "库存不足！" : r == 2 ? "不允许重复下单!" : "秒杀券库存未加载!");
+        }
 
+        //5. 返回订单id 订单由后台线程从消息队列中读取后写入数据库
+        return Result.ok(orderId);
     }
 }
@@ -7,12 +7,19 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.ShardedStock;
+import com.hmdp.utils.SoldOutRegistry;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
 import java.util.List;
 
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
 /**
  * <p>
  *  服务实现类
@@ -27,6 +34,15 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private ISeckillVoucherService seckillVoucherService;
 
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
+    @Resource
+    private ShardedStock shardedStock;
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
         // 查询优惠券信息
@@ -47,5 +63,59 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
+        // 提交后把开始结束时间写入redis和本地缓存 秒杀时不再查数据库
+        seckillVoucherService.cacheAfterCommit(seckillVoucher);
+        // 提交后保存秒杀库存到redis 下单时由lua脚本判断和扣减 指定了分片数的拆成多个key
+        // 提交前写入的话 回滚后redis中会留下可以下单的库存
+        Long voucherId = voucher.getId();
+        Integer stock = voucher.getStock();
+        Integer shards = voucher.getStockShards();
+        afterCommit(() -> {
+            if(shards != null && shards > 1){
+                shardedStock.init(voucherId, stock, shards);
+                shardedStock.register(voucherId);
+            }else {
+                stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucherId, stock.toString());
+            }
+        });
+    }
+
+    @Override
+    @Transactional
+    public Result addSeckillStock(Long voucherId, Integer count) {
+        if(count == null || count <= 0){
+            return Result.fail("补充的库存必须大于0!");
+        }
+        // 1. 更新数据库库存
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock + " + count)
+                .eq("voucher_id", voucherId)
+                .update();
+        if(!success){
+            return Result.fail("秒杀券不存在!");
+        }
+        // 2. 事务提交后更新redis库存 并清除各节点的售罄标记 回滚时redis不会多出库存
+        afterCommit(() -> {
+            if(shardedStock.isSharded(voucherId)){
+                shardedStock.add(voucherId, count);
+            }else {
+                stringRedisTemplate.opsForValue().increment(SECKILL_STOCK_KEY + voucherId, count);
+            }
+            soldOutRegistry.reset(voucherId);
+        });
+        return Result.ok();
+    }
+
+    private void afterCommit(Runnable task){
+        if(TransactionSynchronizationManager.isSynchronizationActive()){
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    task.run();
+                }
+            });
+        }else {
+            task.run();
+        }
     }
 }
@@ -0,0 +1,223 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.ZipUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 紧凑的二进制编解码
+ * 格式: 1字节魔数 + 1字节标记(是否压缩) + 4字节字段结构的哈希 + 按字段名排序依次写入的字段值
+ * 每个字段先写1字节是否为null 再写值 不写字段名
+ * 超过阈值的数据用zlib压缩 压缩后没有变小则保持原样
+ * 只支持实体类中用到的字段类型 遇到其他类型抛出IllegalArgumentException
+ */
+public class BinaryCacheCodec implements CacheCodec {
+
+    private static final byte MAGIC = (byte) 0xC5;
+    private static final byte FLAG_COMPRESSED = 1;
+
+    //类 -> 参与序列化的字段 只反射一次
+    private static final Map<Class<?>, Field[]> FIELDS = new ConcurrentHashMap<>();
+    //类 -> 字段结构的哈希
+    private static final Map<Class<?>, Integer> SCHEMAS = new ConcurrentHashMap<>();
+
+    //超过这个字节数才压缩 <=0 表示不压缩
+    private final int compressThreshold;
+
+    public BinaryCacheCodec(int compressThreshold) {
+        this.compressThreshold = compressThreshold;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(bos);
+            out.writeInt(schemaHash(value.getClass()));
+            writeValue(out, value.getClass(), value);
+            out.flush();
+            byte[] body = bos.toByteArray();
+            byte flag = 0;
+            if (compressThreshold > 0 && body.length > compressThreshold) {
+                byte[] compressed = ZipUtil.zlib(body, 1);
+                if (compressed.length < body.length) {
+                    body = compressed;
+                    flag = FLAG_COMPRESSED;
+                }
+            }
+            byte[] result = new byte[body.length + 2];
+            result[0] = MAGIC;
+            result[1] = flag;
+            System.arraycopy(body, 0, result, 2, body.length);
+            return result;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        if (bytes.length < 2 || bytes[0] != MAGIC) {
+            throw new IllegalArgumentException("不是二进制编码的缓存数据");
+        }
+        byte[] body = Arrays.copyOfRange(bytes, 2, bytes.length);
+        if ((bytes[1] & FLAG_COMPRESSED) != 0) {
+            body = ZipUtil.unZlib(body);
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+            if (in.readInt() != schemaHash(type)) {
+                //实体类的字段发生了变化 旧数据不能再用
+                throw new IllegalArgumentException("缓存数据的字段结构与" + type.getSimpleName() + "不一致");
+            }
+            return type.cast(readValue(in, type));
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private void writeValue(DataOutputStream out, Class<?> type, Object value) throws IOException {
+        if (type == Long.class || type == long.class) {
+            out.writeLong((Long) value);
+        } else if (type == Integer.class || type == int.class) {
+            out.writeInt((Integer) value);
+        } else if (type == Double.class || type == double.class) {
+            out.writeDouble((Double) value);
+        } else if (type == Boolean.class || type == boolean.class) {
+            out.writeBoolean((Boolean) value);
+        } else if (type == String.class) {
+            byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else if (type == LocalDateTime.class) {
+            LocalDateTime time = (LocalDateTime) value;
+            out.writeLong(time.toEpochSecond(ZoneOffset.UTC));
+            out.writeInt(time.getNano());
+        } else if (type == LocalDate.class) {
+            out.writeLong(((LocalDate) value).toEpochDay());
+        } else if (isBean(type)) {
+            for (Field field : fields(type)) {
+                Object fieldValue = get(field, value);
+                out.writeBoolean(fieldValue != null);
+                if (fieldValue != null) {
+                    writeValue(out, field.getType(), fieldValue);
+                }
+            }
+        } else {
+            //不认识的类型直接报错 不能静默写入解不回来的数据
+            throw new IllegalArgumentException("不支持的字段类型: " + type.getName());
+        }
+    }
+
+    private Object readValue(DataInputStream in, Class<?> type) throws IOException {
+        if (type == Long.class || type == long.class) {
+            return in.readLong();
+        } else if (type == Integer.class || type == int.class) {
+            return in.readInt();
+        } else if (type == Double.class || type == double.class) {
+            return in.readDouble();
+        } else if (type == Boolean.class || type == boolean.class) {
+            return in.readBoolean();
+        } else if (type == String.class) {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        } else if (type == LocalDateTime.class) {
+            return LocalDateTime.ofEpochSecond(in.readLong(), in.readInt(), ZoneOffset.UTC);
+        } else if (type == LocalDate.class) {
+            return LocalDate.ofEpochDay(in.readLong());
+        } else if (isBean(type)) {
+            Object bean = newInstance(type);
+            for (Field field : fields(type)) {
+                if (in.readBoolean()) {
+                    set(field, bean, readValue(in, field.getType()));
+                }
+            }
+            return bean;
+        } else {
+            throw new IllegalArgumentException("不支持的字段类型: " + type.getName());
+        }
+    }
+
+    //实体类 按字段逐个编码
+    private static boolean isBean(Class<?> type) {
+        return !type.isPrimitive() && !type.isArray() && !type.isEnum() && !type.isInterface()
+                && !type.getName().startsWith("java.");
+    }
+
+    private static Field[] fields(Class<?> type) {
+        return FIELDS.computeIfAbsent(type, clazz -> {
+            List<Field> list = new ArrayList<>();
+            for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    list.add(field);
+                }
+            }
+            //getDeclaredFields的顺序不保证一致 按名称排序 保证各节点编码一致
+            list.sort(Comparator.comparing(Field::getName));
+            return list.toArray(new Field[0]);
+        });
+    }
+
+    //字段名+类型的哈希 实体类变化后旧缓存自动失效
+    private static int schemaHash(Class<?> type) {
+        return SCHEMAS.computeIfAbsent(type, BinaryCacheCodec::computeSchemaHash);
+    }
+
+    private static int computeSchemaHash(Class<?> type) {
+        if (!isBean(type)) {
+            return type.getName().hashCode();
+        }
+        int hash = type.getName().hashCode();
+        for (Field field : fields(type)) {
+            hash = hash * 31 + field.getName().hashCode();
+            hash = hash * 31 + field.getType().getName().hashCode();
+        }
+        return hash;
+    }
+
+    private static Object get(Field field, Object target) {
+        try {
+            return field.get(target);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void set(Field field, Object target, Object value) {
+        try {
+            field.set(target, value);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Object newInstance(Class<?> type) {
+        try {
+            return type.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("无法创建" + type.getName(), e);
+        }
+    }
+}
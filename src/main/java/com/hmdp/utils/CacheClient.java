@@ -1,19 +1,64 @@
 package com.hmdp.utils;
 
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.bean.copier.CopyOptions;
+import cn.hutool.core.date.LocalDateTimeUtil;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
+import cn.hutool.core.util.ReflectUtil;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import javax.annotation.PreDestroy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -21,111 +66,1351 @@ import static com.hmdp.utils.RedisConstants.*;
 @Component
 public class CacheClient {
 
+    //按版本号写缓存 旧版本不能覆盖新版本
+    private static final DefaultRedisScript<Long> SET_VERSIONED_SCRIPT;
+    //按版本号整体写入hash
+    private static final DefaultRedisScript<Long> HSET_VERSIONED_SCRIPT;
+    //删除缓存并记录最新版本号
+    private static final DefaultRedisScript<Long> INVALIDATE_SCRIPT;
+    static {
+        SET_VERSIONED_SCRIPT = new DefaultRedisScript<>();
+        SET_VERSIONED_SCRIPT.setLocation(new ClassPathResource("cache_set_versioned.lua"));
+        SET_VERSIONED_SCRIPT.setResultType(Long.class);
+        HSET_VERSIONED_SCRIPT = new DefaultRedisScript<>();
+        HSET_VERSIONED_SCRIPT.setLocation(new ClassPathResource("cache_hset_versioned.lua"));
+        HSET_VERSIONED_SCRIPT.setResultType(Long.class);
+        INVALIDATE_SCRIPT = new DefaultRedisScript<>();
+        INVALIDATE_SCRIPT.setLocation(new ClassPathResource("cache_invalidate.lua"));
+        INVALIDATE_SCRIPT.setResultType(Long.class);
+    }
+
+    //hash结构中表示数据库中不存在的字段
+    private static final String HASH_NULL_FIELD = "@null";
+
+    //逻辑过期数据的头部: 8字节过期时间(epoch毫秒) + 8字节重建耗时(毫秒) 之后才是编码后的数据
+    private static final int ENVELOPE_HEADER = 16;
+
     private final StringRedisTemplate stringRedisTemplate;
 
-    public CacheClient(StringRedisTemplate redisTemplate) {
+    //缓存值的编解码
+    private final CacheCodec cacheCodec;
+
+    //缓存指标
+    private final CacheMetrics cacheMetrics;
+
+    //缓存重建线程池
+    private final CacheRebuildExecutor rebuildExecutor;
+
+    //热点key探测
+    private final HotKeyDetector hotKeyDetector;
+    //热点key的本地副本 后台定时从redis刷新 热点降级后删除
+    private final Map<String, HotCopy> hotCopies = new ConcurrentHashMap<>();
+    //本地副本的存活时间 刷新失败超过这个时间就不再使用
+    private final long hotCopyTtlMillis;
+    //本地命中(一级缓存或热点副本)每这么多次抽样记录一次 按这个权重计数
+    private final int hotKeyLocalSample;
+
+    //本地一级缓存 保存反序列化之后的对象 容量和存活时间都有上限 超出容量按LRU淘汰
+    private final LRUCache<String, Object> localCache;
+
+    //正在加载中的key 同一节点上同一个key的并发未命中共用一个future
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+    //被合并掉的请求数
+    private final LongAdder coalescedCount = new LongAdder();
+
+    //key前缀 -> 布隆过滤器 查询前先判断id是否可能存在
+    private final Map<String, RedisBloomFilter> bloomFilters = new ConcurrentHashMap<>();
+
+    //互斥锁重建的完成信号 lockKey -> 信号 本节点等待锁的线程在这里等 不再轮询休眠
+    private final ConcurrentHashMap<String, RebuildSignal> rebuildSignals = new ConcurrentHashMap<>();
+    //等待重建完成的最长时间
+    private final long mutexWaitMillis;
+    //互斥锁策略下最近一次读到的值 不设过期时间 等待超时后兜底返回
+    private final LRUCache<String, Object> staleCache;
+
+    //key前缀 -> 取数据版本号的函数 注册后写缓存时会和redis中的版本号比较
+    private final Map<String, Function<Object, Long>> versionFunctions = new ConcurrentHashMap<>();
+    //延迟双删 使用spring的定时任务线程池(spring.task.scheduling) 不再单独创建线程
+    private final TaskScheduler taskScheduler;
+    //还没执行的第二次删除 key -> 删除任务 停机时立即执行
+    private final Map<String, Runnable> pendingDeletes = new ConcurrentHashMap<>();
+    //第二次删除的延迟
+    private final long doubleDeleteDelayMillis;
+    //失效时记录的版本号保留多久
+    private final long versionTtlMillis;
+
+    //分桶存储 每个桶(hash)保存多少个连续id
+    private final long bucketSize;
+    //使用过分桶存储的key前缀 清理任务只扫描这些前缀下的桶
+    private final Set<String> bucketPrefixes = ConcurrentHashMap.newKeySet();
+
+    //过期时间随机浮动的比例 例如0.1表示在±10%内浮动 避免同一批写入的key同时过期
+    private final double ttlJitter;
+    //浮动之后的最小过期时间
+    private final long ttlMinMillis;
+
+    public CacheClient(StringRedisTemplate redisTemplate,
+                       CacheCodec cacheCodec,
+                       CacheMetrics cacheMetrics,
+                       CacheRebuildExecutor rebuildExecutor,
+                       HotKeyDetector hotKeyDetector,
+                       RedisMessageListenerContainer listenerContainer,
+                       TaskScheduler taskScheduler,
+                       @Value("${hmdp.cache.local.capacity:1000}") int localCapacity,
+                       @Value("${hmdp.cache.local.ttl:60s}") Duration localTtl,
+                       @Value("${hmdp.cache.ttl-jitter:0.1}") double ttlJitter,
+                       @Value("${hmdp.cache.ttl-min:30s}") Duration ttlMin,
+                       @Value("${hmdp.cache.hot-key.copy-ttl:5s}") Duration hotCopyTtl,
+                       @Value("${hmdp.cache.hot-key.local-sample:16}") int hotKeyLocalSample,
+                       @Value("${hmdp.cache.mutex.wait-timeout:500ms}") Duration mutexWait,
+                       @Value("${hmdp.cache.double-delete-delay:1s}") Duration doubleDeleteDelay,
+                       @Value("${hmdp.cache.version-ttl:60m}") Duration versionTtl,
+                       @Value("${hmdp.cache.bucket.size:1000}") long bucketSize) {
         this.stringRedisTemplate = redisTemplate;
+        this.cacheCodec = cacheCodec;
+        this.cacheMetrics = cacheMetrics;
+        this.rebuildExecutor = rebuildExecutor;
+        this.hotKeyDetector = hotKeyDetector;
+        this.hotCopyTtlMillis = hotCopyTtl.toMillis();
+        this.hotKeyLocalSample = Math.max(1, hotKeyLocalSample);
+        this.ttlJitter = ttlJitter;
+        this.ttlMinMillis = ttlMin.toMillis();
+        this.localCache = CacheUtil.newLRUCache(localCapacity, localTtl.toMillis());
+        this.mutexWaitMillis = mutexWait.toMillis();
+        this.staleCache = CacheUtil.newLRUCache(localCapacity);
+        this.doubleDeleteDelayMillis = doubleDeleteDelay.toMillis();
+        this.versionTtlMillis = versionTtl.toMillis();
+        this.bucketSize = bucketSize;
+        this.taskScheduler = taskScheduler;
+        //本地缓存和请求合并的指标
+        FunctionCounter.builder("cache.local.hits", localCache, LRUCache::getHitCount).register(cacheMetrics.getRegistry());
+        FunctionCounter.builder("cache.local.misses", localCache, LRUCache::getMissCount).register(cacheMetrics.getRegistry());
+        Gauge.builder("cache.local.size", localCache, LRUCache::size).register(cacheMetrics.getRegistry());
+        FunctionCounter.builder("cache.coalesced", coalescedCount, LongAdder::sum).register(cacheMetrics.getRegistry());
+        Gauge.builder("cache.double-delete.pending", pendingDeletes, Map::size).register(cacheMetrics.getRegistry());
+        //订阅失效广播 其他节点删除缓存时同步清理本地缓存
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String key = new String(message.getBody(), StandardCharsets.UTF_8);
+            localCache.remove(key);
+            hotCopies.remove(key);
+            staleCache.remove(key);
+        }, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        //订阅重建完成通知 消息内容是锁的key 其他节点重建完成后唤醒本节点的等待线程
+        listenerContainer.addMessageListener((message, pattern) ->
+                        signalRebuilt(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(CACHE_REBUILT_CHANNEL));
     }
 
     public void set(String key, Object value, Long Time, TimeUnit timeUnit){
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value),Time,timeUnit);
+        setVersioned(key, value, cacheCodec.encode(value), jitter(timeUnit.toMillis(Time)));
     }
 
     public void setWithLogicExpire(String key, Object value, Long Time, TimeUnit timeUnit){
         //设置逻辑过期
         RedisData redisData = new RedisData();
-        redisData.setData(redisData);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(timeUnit.toSeconds(Time)));
-        //写入redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData),Time,timeUnit);
+        redisData.setData(value);
+        redisData.setExpireTime(LocalDateTime.now().plus(jitter(timeUnit.toMillis(Time)), ChronoUnit.MILLIS));
+        //写入redis 不设置真实的过期时间 由逻辑过期控制重建
+        setVersioned(key, value, encodeEnvelope(redisData), 0);
+    }
+
+    /**
+     * 用pipeline批量写入缓存
+     * @param values key -> 对象
+     * @param logicExpire true写入逻辑过期数据(不设置真实过期时间) false写入普通数据并设置过期时间
+     */
+    public void setBatch(Map<String, ?> values, Long Time, TimeUnit timeUnit, boolean logicExpire){
+        if(values.isEmpty()){
+            return;
+        }
+        //先在当前线程编码好 pipeline里只做网络写入 每个key的过期时间单独浮动
+        //有版本号的key同样经过版本检查 不能覆盖失效之后写入的新数据
+        Map<String, byte[]> encoded = new HashMap<>(values.size());
+        Map<String, Long> ttls = new HashMap<>(values.size());
+        Map<String, Long> versions = new HashMap<>(values.size());
+        long now = System.currentTimeMillis();
+        values.forEach((key, value) -> {
+            long ttl = jitter(timeUnit.toMillis(Time));
+            encoded.put(key, logicExpire ? encodeEnvelope(value, now + ttl, 0) : cacheCodec.encode(value));
+            ttls.put(key, logicExpire ? 0 : ttl);
+            versions.put(key, versionOfKey(key, value));
+        });
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            encoded.forEach((key, value) -> setVersioned(connection, key, value, ttls.get(key), versions.get(key)));
+            return null;
+        });
+    }
+
+    //删除缓存 并广播给所有节点清理本地缓存
+    public void delete(String key){
+        stringRedisTemplate.delete(key);
+        evictLocal(key);
+    }
+
+    /**
+     * 数据库更新后删除缓存 有事务时在提交之后再删 并在一段时间后再删一次
+     * 删除时记录新的版本号 之前读到旧数据的线程不能再把旧数据写回缓存
+     * @param key 缓存key
+     * @param version 更新后的数据版本号 为null时不做版本检查
+     */
+    public void deleteAfterCommit(String key, Long version){
+        afterCommit(() -> invalidate(key, version));
+    }
+
+    //分桶存储的数据 提交后删除 并延迟再删一次
+    public void deleteFromBucketAfterCommit(String keyPrefix, Long id){
+        afterCommit(() -> {
+            deleteFromBucket(keyPrefix, id);
+            scheduleDelete(keyPrefix + id, () -> deleteFromBucket(keyPrefix, id));
+        });
+    }
+
+    //有事务时在提交之后执行 否则立即执行
+    private void afterCommit(Runnable task){
+        if(TransactionSynchronizationManager.isSynchronizationActive()){
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    task.run();
+                }
+            });
+        }else {
+            task.run();
+        }
+    }
+
+    private void invalidate(String key, Long version){
+        //1. 第一次删除
+        if(version == null){
+            stringRedisTemplate.delete(key);
+        }else {
+            stringRedisTemplate.execute(INVALIDATE_SCRIPT, Arrays.asList(key, key + CACHE_VERSION_SUFFIX),
+                    version.toString(), String.valueOf(versionTtlMillis));
+        }
+        evictLocal(key);
+        //2. 延迟第二次删除 清理提交前后并发读写回的旧数据
+        scheduleDelete(key, () -> delete(key));
+    }
+
+    //延迟执行第二次删除 同一个key只保留最后一次 前一次到期时也会照常执行
+    private void scheduleDelete(String key, Runnable delete){
+        Runnable task = () -> {
+            pendingDeletes.remove(key, delete);
+            try {
+                delete.run();
+            } catch (Exception e) {
+                cacheMetrics.getRegistry().counter("cache.double-delete.failed").increment();
+                log.warn("延迟删除缓存失败, key={}", key, e);
+            }
+        };
+        pendingDeletes.put(key, delete);
+        taskScheduler.schedule(task, new Date(System.currentTimeMillis() + doubleDeleteDelayMillis));
+    }
+
+    //清理本节点的本地缓存并通知其他节点
+    private void evictLocal(String key){
+        localCache.remove(key);
+        hotCopies.remove(key);
+        staleCache.remove(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    //本地缓存命中次数
+    public long getLocalHitCount(){
+        return localCache.getHitCount();
+    }
+
+    //本地缓存未命中次数
+    public long getLocalMissCount(){
+        return localCache.getMissCount();
+    }
+
+    //本地缓存当前条数
+    public int getLocalSize(){
+        return localCache.size();
+    }
+
+    //为某个key前缀注册布隆过滤器 注册后穿透查询会先经过过滤器
+    public void registerBloomFilter(String keyPrefix, RedisBloomFilter bloomFilter){
+        bloomFilters.put(keyPrefix, bloomFilter);
+    }
+
+    //为某个key前缀注册版本号函数 返回null表示该数据没有版本号
+    @SuppressWarnings("unchecked")
+    public <R> void registerVersion(String keyPrefix, Function<R, Long> version){
+        versionFunctions.put(keyPrefix, (Function<Object, Long>) version);
+    }
+
+    //停机时定时任务线程池会丢弃没到期的任务 这里把还没执行的第二次删除立即执行掉
+    @PreDestroy
+    public void shutdown(){
+        for (Map.Entry<String, Runnable> entry : pendingDeletes.entrySet()) {
+            if(!pendingDeletes.remove(entry.getKey(), entry.getValue())){
+                continue;
+            }
+            try {
+                entry.getValue().run();
+            } catch (Exception e) {
+                log.warn("停机前删除缓存失败, key={}", entry.getKey(), e);
+            }
+        }
+    }
+
+    //被合并(没有自己查库)的请求数
+    public long getCoalescedCount(){
+        return coalescedCount.sum();
+    }
+
+    /**
+     * 同一个key的并发加载只执行一次 其余线程等待同一个结果
+     * @param key 缓存key
+     * @param loader 真正的加载逻辑(查库+写缓存)
+     * @return 加载结果
+     */
+    @SuppressWarnings("unchecked")
+    private <R> R singleFlight(String key, Supplier<R> loader){
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> running = inFlight.putIfAbsent(key, future);
+        if(running != null){
+            //已经有线程在加载 等待它的结果
+            coalescedCount.increment();
+            try {
+                return (R) running.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof RuntimeException ? (RuntimeException) cause : e;
+            }
+        }
+        try {
+            R r = loader.get();
+            future.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
     }
 
-    //泛型  + (有参有返回值)函数 因为不知道是什么类型 函数式编程
     public <R,ID> R queryWithPassThrough(
             String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback,Long Time, TimeUnit timeUnit){
+        return queryWithPassThrough(keyPrefix, id, type, dbFallback, Time, timeUnit, false);
+    }
+
+    //泛型  + (有参有返回值)函数 因为不知道是什么类型 函数式编程
+    //singleFlight为true时 同一节点上同一个key的并发未命中只查一次数据库
+    public <R,ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback,
+                                         Long Time, TimeUnit timeUnit, boolean singleFlight){
         String key = keyPrefix + id;
-        //1. 从redis查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        //0. 热点key直接读本地副本
+        R hot = getHotCopy(key, type);
+        if(hot != null){
+            cacheMetrics.localHit(keyPrefix);
+            recordLocalHit(key);
+            return hot;
+        }
+        //先查本地缓存 命中直接返回 不走网络也不用反序列化
+        Object local = localCache.get(key);
+        if(type.isInstance(local)){
+            cacheMetrics.localHit(keyPrefix);
+            recordLocalHit(key);
+            return type.cast(local);
+        }
+        //布隆过滤器判断一定不存在 直接返回 不查缓存也不写空值
+        RedisBloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        if(bloomFilter != null && !bloomFilter.mightContain(id)){
+            cacheMetrics.bloomReject(keyPrefix);
+            return null;
+        }
+        //1. 从redis查询商铺缓存 本地未命中的读逐次计数
+        hotKeyDetector.record(key);
+        byte[] bytes = getRaw(key);
         //2. 判断redis中是否存在
-        //isNotBlank()对于空字符串""的返回值也是false
-        if(StrUtil.isNotBlank(json)){
-            return JSONUtil.toBean(json, type);
+        R r = decode(key, bytes, type);
+        if(r != null){
+            cacheMetrics.hit(keyPrefix);
+            localCache.put(key, r);
+            putHotCopy(key, r, type);
+            return r;
         }
 
         //判断命中的是否为空值
-        //""!=null 这里判断的是是否为""
-        if(json!=null){
+        if(isNullValue(bytes)){
+            cacheMetrics.nullHit(keyPrefix);
             return null;
         }
 
         //4. Redis中不存在，根据id查询数据库
+        cacheMetrics.miss(keyPrefix);
+        if(singleFlight){
+            return singleFlight(key, () -> loadAndCache(keyPrefix, id, dbFallback, Time, timeUnit));
+        }
+        return loadAndCache(keyPrefix, id, dbFallback, Time, timeUnit);
+    }
+
+    //查询数据库并记录耗时
+    private <R,ID> R loadFromDb(String keyPrefix, ID id, Function<ID,R> dbFallback){
+        long begin = System.nanoTime();
         R r = dbFallback.apply(id);
+        cacheMetrics.load(keyPrefix, System.nanoTime() - begin, r != null);
+        return r;
+    }
+
+    //查询数据库并写入缓存 不存在则缓存空值
+    private <R,ID> R loadAndCache(String keyPrefix, ID id, Function<ID,R> dbFallback, Long Time, TimeUnit timeUnit){
+        String key = keyPrefix + id;
+        R r = loadFromDb(keyPrefix, id, dbFallback);
 
         //5. 数据库中不存在，返回错误
         if (r == null) {
-            //将空值写入redis
-            stringRedisTemplate.opsForValue().set(key,"",CACHE_NULL_TTL, TimeUnit.MINUTES);
+            //将空值写入redis 有布隆过滤器时只有误判的id才会走到这里
+            setNullValue(key);
             //返回错误信息
             return null;
         }
 
-        //6. 数据库存在，先写入redis 并设置过期时间  再返回
-        this.set(key,r,Time,timeUnit);
+        //6. 数据库存在，先写入redis 并设置过期时间  再返回 有版本号时旧版本不会覆盖新版本
+        if(!setVersioned(key, r, cacheCodec.encode(r), jitter(timeUnit.toMillis(Time)))){
+            return r;
+        }
+        localCache.put(key, r);
 
         return r;
     }
 
+    /**
+     * 批量查询 一次MGET查缓存 未命中的一次查库 再用pipeline写回缓存
+     * @param keyPrefix key前缀
+     * @param ids id列表
+     * @param type 实体类型
+     * @param dbBatchFallback 批量查库 返回id到实体的映射
+     * @return 按ids原有顺序排列的结果 不存在的id会被跳过
+     */
+    public <R,ID> List<R> queryBatchWithPassThrough(String keyPrefix, List<ID> ids, Class<R> type,
+                                                    Function<Collection<ID>, Map<ID,R>> dbBatchFallback,
+                                                    Long Time, TimeUnit timeUnit){
+        Map<ID, R> found = new HashMap<>(ids.size());
+        //1. 先查本地缓存
+        List<ID> remoteIds = new ArrayList<>(ids.size());
+        for (ID id : new LinkedHashSet<>(ids)) {
+            Object local = localCache.get(keyPrefix + id);
+            if(type.isInstance(local)){
+                cacheMetrics.localHit(keyPrefix);
+                found.put(id, type.cast(local));
+            }else {
+                remoteIds.add(id);
+            }
+        }
+        //2. 一次MGET查询redis
+        List<ID> missIds = new ArrayList<>();
+        if(!remoteIds.isEmpty()){
+            byte[][] rawKeys = new byte[remoteIds.size()][];
+            for (int i = 0; i < remoteIds.size(); i++) {
+                rawKeys[i] = rawKey(keyPrefix + remoteIds.get(i));
+            }
+            List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) c -> c.mGet(rawKeys));
+            for (int i = 0; i < remoteIds.size(); i++) {
+                String key = keyPrefix + remoteIds.get(i);
+                byte[] bytes = values == null ? null : values.get(i);
+                R r = decode(key, bytes, type);
+                if(r != null){
+                    cacheMetrics.hit(keyPrefix);
+                    localCache.put(key, r);
+                    found.put(remoteIds.get(i), r);
+                }else if(isNullValue(bytes)){
+                    //空值说明数据库中也没有 不用再查
+                    cacheMetrics.nullHit(keyPrefix);
+                }else {
+                    cacheMetrics.miss(keyPrefix);
+                    missIds.add(remoteIds.get(i));
+                }
+            }
+        }
+        //3. 未命中的一次查库 并用pipeline写回redis
+        if(!missIds.isEmpty()){
+            long begin = System.nanoTime();
+            Map<ID, R> loaded = dbBatchFallback.apply(missIds);
+            cacheMetrics.load(keyPrefix, System.nanoTime() - begin, !loaded.isEmpty());
+            found.putAll(loaded);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (ID id : missIds) {
+                    String key = keyPrefix + id;
+                    R r = loaded.get(id);
+                    if(r == null){
+                        connection.pSetEx(rawKey(key), jitter(TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL)), new byte[0]);
+                    }else {
+                        setVersioned(connection, key, cacheCodec.encode(r), jitter(timeUnit.toMillis(Time)),
+                                versionOf(keyPrefix, r));
+                        localCache.put(key, r);
+                    }
+                }
+                return null;
+            });
+        }
+        //4. 按原有顺序返回
+        List<R> result = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            R r = found.get(id);
+            if(r != null){
+                result.add(r);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 以hash结构写入 每个非空属性一个field 日期按yyyy-MM-dd HH:mm:ss保存
+     * 字段少且值短时redis使用紧凑的listpack编码 比整个对象序列化成一个字符串更省内存 也可以只读部分字段
+     */
+    public void setHash(String keyPrefix, Object id, Object value, Long Time, TimeUnit timeUnit){
+        String key = keyPrefix + id;
+        Long version = versionOf(keyPrefix, value);
+        List<String> args = hashArgs(version, jitter(timeUnit.toMillis(Time)), toHash(value));
+        stringRedisTemplate.execute(HSET_VERSIONED_SCRIPT, Arrays.asList(key, key + CACHE_VERSION_SUFFIX), args.toArray());
+    }
+
+    public <R,ID> R queryHashWithPassThrough(String keyPrefix, ID id, Class<R> type, String[] fields,
+                                            Function<ID,R> dbFallback, Long Time, TimeUnit timeUnit){
+        List<R> list = queryBatchHashWithPassThrough(keyPrefix, Collections.singletonList(id), type, fields,
+                ids -> {
+                    R r = loadFromDb(keyPrefix, id, dbFallback);
+                    return r == null ? Collections.emptyMap() : Collections.singletonMap(id, r);
+                }, Time, timeUnit);
+        return list.isEmpty() ? null : list.get(0);
+    }
+
+    /**
+     * 批量查询hash结构的缓存 用pipeline对每个key执行HMGET 只读取fields中的字段
+     * 未命中的一次查库 整行写回hash 返回的对象只填充了fields中的字段
+     * @param keyPrefix key前缀 完整key为keyPrefix + id
+     * @param fields 需要的字段(属性名)
+     * @return 按ids原有顺序排列的结果 不存在的id会被跳过
+     */
+    public <R,ID> List<R> queryBatchHashWithPassThrough(String keyPrefix, List<ID> ids, Class<R> type, String[] fields,
+                                                        Function<Collection<ID>, Map<ID,R>> dbBatchFallback,
+                                                        Long Time, TimeUnit timeUnit){
+        List<ID> distinctIds = new ArrayList<>(new LinkedHashSet<>(ids));
+        Map<ID, R> found = new HashMap<>(distinctIds.size());
+        //1. pipeline批量HMGET 多读一个空值标记字段
+        byte[][] rawFields = new byte[fields.length + 1][];
+        for (int i = 0; i < fields.length; i++) {
+            rawFields[i] = rawKey(fields[i]);
+        }
+        rawFields[fields.length] = rawKey(HASH_NULL_FIELD);
+        List<Object> values = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (ID id : distinctIds) {
+                connection.hMGet(rawKey(keyPrefix + id), rawFields);
+            }
+            return null;
+        });
+        List<ID> missIds = new ArrayList<>();
+        for (int i = 0; i < distinctIds.size(); i++) {
+            @SuppressWarnings("unchecked")
+            List<String> row = (List<String>) values.get(i);
+            if(row.get(fields.length) != null){
+                //空值说明数据库中也没有 不用再查
+                cacheMetrics.nullHit(keyPrefix);
+                continue;
+            }
+            Map<String, String> map = new HashMap<>(fields.length);
+            for (int j = 0; j < fields.length; j++) {
+                if(row.get(j) != null){
+                    map.put(fields[j], row.get(j));
+                }
+            }
+            if(map.isEmpty()){
+                //key不存在
+                cacheMetrics.miss(keyPrefix);
+                missIds.add(distinctIds.get(i));
+                continue;
+            }
+            cacheMetrics.hit(keyPrefix);
+            found.put(distinctIds.get(i), BeanUtil.fillBeanWithMap(map, ReflectUtil.newInstance(type), true));
+        }
+        //2. 未命中的一次查库 用pipeline整行写回
+        if(!missIds.isEmpty()){
+            long begin = System.nanoTime();
+            Map<ID, R> loaded = dbBatchFallback.apply(missIds);
+            cacheMetrics.load(keyPrefix, System.nanoTime() - begin, !loaded.isEmpty());
+            byte[] script = HSET_VERSIONED_SCRIPT.getScriptAsString().getBytes(StandardCharsets.UTF_8);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (ID id : missIds) {
+                    String key = keyPrefix + id;
+                    R r = loaded.get(id);
+                    List<String> args = r == null
+                            ? hashArgs(null, jitter(TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL)), Collections.singletonMap(HASH_NULL_FIELD, "1"))
+                            : hashArgs(versionOf(keyPrefix, r), jitter(timeUnit.toMillis(Time)), toHash(r));
+                    byte[][] keysAndArgs = new byte[args.size() + 2][];
+                    keysAndArgs[0] = rawKey(key);
+                    keysAndArgs[1] = rawKey(key + CACHE_VERSION_SUFFIX);
+                    for (int i = 0; i < args.size(); i++) {
+                        keysAndArgs[i + 2] = rawKey(args.get(i));
+                    }
+                    connection.eval(script, ReturnType.INTEGER, 2, keysAndArgs);
+                }
+                return null;
+            });
+            found.putAll(loaded);
+        }
+        //3. 按原有顺序返回
+        List<R> result = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            R r = found.get(id);
+            if(r != null){
+                result.add(r);
+            }
+        }
+        return result;
+    }
+
+    //对象转成hash的field和value 跳过空值
+    private static Map<String, String> toHash(Object value){
+        Map<String, Object> map = BeanUtil.beanToMap(value, new LinkedHashMap<>(), CopyOptions.create()
+                .setIgnoreNullValue(true)
+                .setFieldValueEditor((fieldName, fieldValue) -> {
+                    if(fieldValue instanceof LocalDateTime){
+                        return LocalDateTimeUtil.formatNormal((LocalDateTime) fieldValue);
+                    }
+                    return fieldValue == null ? null : fieldValue.toString();
+                }));
+        Map<String, String> hash = new LinkedHashMap<>(map.size());
+        map.forEach((k, v) -> {
+            if(v != null){
+                hash.put(k, v.toString());
+            }
+        });
+        return hash;
+    }
+
+    //hash写入脚本的参数: 版本号 过期时间 版本号保留时间 field value...
+    private List<String> hashArgs(Long version, long ttlMillis, Map<String, String> hash){
+        List<String> args = new ArrayList<>(hash.size() * 2 + 3);
+        args.add(version == null ? "" : version.toString());
+        args.add(String.valueOf(ttlMillis));
+        args.add(String.valueOf(versionTtl(ttlMillis)));
+        hash.forEach((k, v) -> {
+            args.add(k);
+            args.add(v);
+        });
+        return args;
+    }
+
+    /**
+     * 分桶存储的缓存穿透查询 连续的bucketSize个id放在同一个hash中: keyPrefix + b: + id/bucketSize
+     * 每个field的值前8字节是过期时间 过期的field读取时当作未命中 由后台任务定期清理
+     * 大量小对象和空值不再各自占用一个顶层key 省去每个key几十字节的额外开销
+     */
+    public <R> R queryBucketWithPassThrough(String keyPrefix, Long id, Class<R> type, Function<Long,R> dbFallback,
+                                            Long Time, TimeUnit timeUnit){
+        String key = keyPrefix + id;
+        bucketPrefixes.add(keyPrefix);
+        //1. 先查本地缓存
+        Object local = localCache.get(key);
+        if(type.isInstance(local)){
+            cacheMetrics.localHit(keyPrefix);
+            return type.cast(local);
+        }
+        //2. 查询桶中的field
+        byte[] bucketKey = rawKey(bucketKey(keyPrefix, id));
+        byte[] field = rawKey(id.toString());
+        byte[] bytes = stringRedisTemplate.execute((RedisCallback<byte[]>) c -> c.hGet(bucketKey, field));
+        if(bytes != null && bytes.length >= 8 && readExpireMillis(bytes) > System.currentTimeMillis()){
+            if(bytes.length == 8){
+                //只有过期时间 是空值
+                cacheMetrics.nullHit(keyPrefix);
+                return null;
+            }
+            R r = decode(key, Arrays.copyOfRange(bytes, 8, bytes.length), type);
+            if(r != null){
+                cacheMetrics.hit(keyPrefix);
+                localCache.put(key, r);
+                return r;
+            }
+        }
+        //3. 未命中或已过期 查库后写回桶中
+        cacheMetrics.miss(keyPrefix);
+        R r = loadFromDb(keyPrefix, id, dbFallback);
+        long ttl = r == null ? jitter(TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL)) : jitter(timeUnit.toMillis(Time));
+        byte[] payload = r == null ? new byte[0] : cacheCodec.encode(r);
+        byte[] value = ByteBuffer.allocate(8 + payload.length)
+                .putLong(System.currentTimeMillis() + ttl).put(payload).array();
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) c -> {
+            c.hSet(bucketKey, field, value);
+            //桶本身的过期时间顺延 长期没有写入的桶整个过期
+            c.pExpire(bucketKey, Math.max(ttl, timeUnit.toMillis(Time)) * 2);
+            return null;
+        });
+        if(r != null){
+            localCache.put(key, r);
+        }
+        return r;
+    }
+
+    //从桶中删除某个id 并通知各节点清理本地缓存
+    public void deleteFromBucket(String keyPrefix, Long id){
+        stringRedisTemplate.opsForHash().delete(bucketKey(keyPrefix, id), id.toString());
+        evictLocal(keyPrefix + id);
+    }
+
+    private String bucketKey(String keyPrefix, Long id){
+        return keyPrefix + "b:" + (id / bucketSize);
+    }
+
+    //定期清理桶中已经过期的field
+    @Scheduled(fixedDelayString = "${hmdp.cache.bucket.sweep-millis:60000}")
+    public void sweepBuckets(){
+        long now = System.currentTimeMillis();
+        for (String keyPrefix : bucketPrefixes) {
+            long removed = 0;
+            ScanOptions options = ScanOptions.scanOptions().match(keyPrefix + "b:*").count(100).build();
+            List<byte[]> bucketKeys = new ArrayList<>();
+            stringRedisTemplate.execute((RedisCallback<Object>) c -> {
+                try (Cursor<byte[]> cursor = c.scan(options)) {
+                    cursor.forEachRemaining(bucketKeys::add);
+                }
+                return null;
+            });
+            for (byte[] bucketKey : bucketKeys) {
+                removed += sweepBucket(bucketKey, now);
+            }
+            if(removed > 0){
+                log.debug("清理过期的分桶缓存 prefix={}, buckets={}, removed={}", keyPrefix, bucketKeys.size(), removed);
+            }
+        }
+    }
+
+    private long sweepBucket(byte[] bucketKey, long now){
+        Long removed = stringRedisTemplate.execute((RedisCallback<Long>) c -> {
+            List<byte[]> expired = new ArrayList<>();
+            try (Cursor<Map.Entry<byte[], byte[]>> cursor = c.hScan(bucketKey, ScanOptions.scanOptions().count(200).build())) {
+                cursor.forEachRemaining(entry -> {
+                    byte[] value = entry.getValue();
+                    if(value == null || value.length < 8 || readExpireMillis(value) <= now){
+                        expired.add(entry.getKey());
+                    }
+                });
+            }
+            return expired.isEmpty() ? 0L : c.hDel(bucketKey, expired.toArray(new byte[0][]));
+        });
+        return removed == null ? 0 : removed;
+    }
+
+    /**
+     * 比较同一个前缀下 每个id一个key 和 分桶存储 两种方式的内存占用
+     * 各抽样最多sampleSize个key 用MEMORY USAGE统计 折算成每条数据的平均字节数
+     * @param keyPrefix key前缀 如 cache:shop:
+     * @param sampleSize 每种方式最多抽样的key数
+     */
+    public Map<String, Object> memoryReport(String keyPrefix, int sampleSize){
+        //每个id一个key: keyPrefix后面直接是数字id
+        long[] plain = sampleMemory(keyPrefix + "[0-9]*", sampleSize, false);
+        //分桶: 一个key中有多条数据
+        long[] bucket = sampleMemory(keyPrefix + "b:*", sampleSize, true);
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("plainKeys", plain[0]);
+        report.put("plainBytesPerEntry", plain[1] == 0 ? 0 : plain[2] / plain[1]);
+        report.put("bucketKeys", bucket[0]);
+        report.put("bucketEntries", bucket[1]);
+        report.put("bucketBytesPerEntry", bucket[1] == 0 ? 0 : bucket[2] / bucket[1]);
+        return report;
+    }
+
+    //返回 抽样key数, 数据条数, 总字节数
+    private long[] sampleMemory(String pattern, int sampleSize, boolean bucket){
+        long[] result = new long[3];
+        ScanOptions options = ScanOptions.scanOptions().match(pattern).count(1000).build();
+        stringRedisTemplate.execute((RedisCallback<Object>) c -> {
+            try (Cursor<byte[]> cursor = c.scan(options)) {
+                while (cursor.hasNext() && result[0] < sampleSize) {
+                    byte[] key = cursor.next();
+                    if(!bucket && new String(key, StandardCharsets.UTF_8).endsWith(CACHE_VERSION_SUFFIX)){
+                        continue;
+                    }
+                    Object usage = c.execute("MEMORY", rawKey("USAGE"), key);
+                    if(!(usage instanceof Number)){
+                        continue;
+                    }
+                    Long entries = bucket ? c.hLen(key) : Long.valueOf(1);
+                    result[0]++;
+                    result[1] += entries == null ? 0 : entries;
+                    result[2] += ((Number) usage).longValue();
+                }
+            }
+            return null;
+        });
+        return result;
+    }
+
+    public <R,ID> R queryWithMutex(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback,
+                                   Long Time, TimeUnit timeUnit){
+        return queryWithMutex(keyPrefix, id, type, dbFallback, Time, timeUnit, false);
+    }
+
+    //使用互斥锁解决缓存击穿
+    //singleFlight为true时 同一节点上只有一个线程去竞争分布式锁 其余线程等待它的结果
+    public <R,ID> R queryWithMutex(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback,
+                                   Long Time, TimeUnit timeUnit, boolean singleFlight){
+        String key = keyPrefix + id;
+        //0. 热点key直接读本地副本
+        R hot = getHotCopy(key, type);
+        if(hot != null){
+            cacheMetrics.localHit(keyPrefix);
+            recordLocalHit(key);
+            return hot;
+        }
+        //1. 从redis查询缓存 本地未命中的读逐次计数
+        hotKeyDetector.record(key);
+        byte[] bytes = getRaw(key);
+        //2. 命中直接返回
+        R r = decode(key, bytes, type);
+        if(r != null){
+            cacheMetrics.hit(keyPrefix);
+            putHotCopy(key, r, type);
+            staleCache.put(key, r);
+            return r;
+        }
+        if(isNullValue(bytes)){
+            cacheMetrics.nullHit(keyPrefix);
+            return null;
+        }
+        //3. 未命中 加锁重建
+        cacheMetrics.miss(keyPrefix);
+        if(singleFlight){
+            return singleFlight(key, () -> rebuildWithMutex(keyPrefix, id, type, dbFallback, Time, timeUnit));
+        }
+        return rebuildWithMutex(keyPrefix, id, type, dbFallback, Time, timeUnit);
+    }
+
+    private <R,ID> R rebuildWithMutex(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback,
+                                      Long Time, TimeUnit timeUnit){
+        String key = keyPrefix + id;
+        String lockKey = lockKeyOf(key);
+        //最多等两轮 每轮先抢锁 抢不到就等持有锁的线程重建完成的通知
+        for (int attempt = 0; attempt < 2; attempt++) {
+            if(tryLock(lockKey)){
+                return rebuildLocked(keyPrefix, id, type, dbFallback, Time, timeUnit, lockKey);
+            }
+            cacheMetrics.lockContention(keyPrefix);
+            byte[] bytes = awaitRebuild(key, lockKey);
+            if(isNullValue(bytes)){
+                return null;
+            }
+            R r = decode(key, bytes, type);
+            if(r != null){
+                return r;
+            }
+            //超时了 有旧数据先返回旧数据
+            Object stale = staleCache.get(key, false);
+            if(type.isInstance(stale)){
+                cacheMetrics.staleServed(keyPrefix);
+                return type.cast(stale);
+            }
+        }
+        //两轮都没有等到 持有锁的节点很慢或已经挂了 直接查一次数据库返回 不写缓存(缓存由持有锁的线程写入)
+        //开启singleFlight时同一个节点上的等待者已经合并 每个节点最多多查一次
+        return loadFromDb(keyPrefix, id, dbFallback);
+    }
+
+    //持有锁时重建缓存 完成后释放锁并通知所有等待者
+    private <R,ID> R rebuildLocked(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback,
+                                   Long Time, TimeUnit timeUnit, String lockKey){
+        String key = keyPrefix + id;
+        try {
+            //2. 获取锁成功 DoubleCheck 其他节点可能已经重建好了
+            byte[] bytes = getRaw(key);
+            R r = decode(key, bytes, type);
+            if(r != null || isNullValue(bytes)){
+                return r;
+            }
+            //3. 查询数据库并写入缓存
+            r = loadAndCache(keyPrefix, id, dbFallback, Time, timeUnit);
+            if(r != null){
+                staleCache.put(key, r);
+            }
+            return r;
+        } finally {
+            //4. 释放互斥锁 唤醒本节点的等待线程 并通知其他节点
+            unlock(lockKey);
+            signalRebuilt(lockKey);
+            stringRedisTemplate.convertAndSend(CACHE_REBUILT_CHANNEL, lockKey);
+        }
+    }
+
+    /**
+     * 等待重建完成 最多等mutexWaitMillis
+     * @return 重建后缓存中的数据 超时或仍然没有数据返回null
+     */
+    private byte[] awaitRebuild(String key, String lockKey){
+        //1. 登记为等待者 同一个锁的等待者共用一个信号
+        RebuildSignal signal = rebuildSignals.compute(lockKey, (k, s) -> {
+            RebuildSignal current = s == null ? new RebuildSignal() : s;
+            current.waiters.incrementAndGet();
+            return current;
+        });
+        try {
+            //2. 登记之后再查一次 防止在登记之前重建已经完成 错过通知
+            byte[] bytes = getRaw(key);
+            if(bytes != null){
+                return bytes;
+            }
+            //3. 等待通知
+            signal.future.get(mutexWaitMillis, TimeUnit.MILLISECONDS);
+            return getRaw(key);
+        } catch (TimeoutException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            //信号只会正常完成
+            throw new IllegalStateException(e);
+        } finally {
+            //最后一个等待者离开时才移除信号 其他还在等的线程仍然能被唤醒
+            rebuildSignals.computeIfPresent(lockKey,
+                    (k, s) -> s == signal && signal.waiters.decrementAndGet() == 0 ? null : s);
+        }
+    }
+
+    //唤醒本节点等待该锁的线程
+    private void signalRebuilt(String lockKey){
+        RebuildSignal signal = rebuildSignals.remove(lockKey);
+        if(signal != null){
+            signal.future.complete(null);
+        }
+    }
+
+    //同一个锁的等待信号和等待者数量
+    private static class RebuildSignal {
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private final AtomicInteger waiters = new AtomicInteger();
+    }
+
+    //重建锁 每个缓存key一把 不同前缀的缓存即使id相同也互不影响
+    private static String lockKeyOf(String key){
+        return CACHE_LOCK_PREFIX + key;
+    }
 
-    //使用线程池开启线程
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
-    //使用逻辑过期时间解决缓存击穿
     public <R,ID> R queryWithLogicExpire(String keyPrefix, ID id,Class<R> type, Function<ID,R> dbFallback,
                                          Long Time, TimeUnit timeUnit){
+        return queryWithLogicExpire(keyPrefix, id, type, dbFallback, Time, timeUnit, false);
+    }
+
+    //使用逻辑过期时间解决缓存击穿
+    //singleFlight为true时 同一节点上同一个key正在重建时 其余线程不再去抢锁 直接返回旧数据
+    public <R,ID> R queryWithLogicExpire(String keyPrefix, ID id,Class<R> type, Function<ID,R> dbFallback,
+                                         Long Time, TimeUnit timeUnit, boolean singleFlight){
+        String key = keyPrefix + id;
         //1. 从redis查询商铺缓存
-        String Json = stringRedisTemplate.opsForValue().get(keyPrefix+id);
+        byte[] bytes = getRaw(key);
         //2. 判断redis中是否存在
-        if(StrUtil.isBlank(Json)){
+        if(bytes == null || bytes.length < ENVELOPE_HEADER){
             //3. 为空
+            cacheMetrics.miss(keyPrefix);
             return null;
         }
 
-        //4. 命中，需要将json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(Json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
-        LocalDateTime expireTime = redisData.getExpireTime();
+        //4. 命中，反序列化数据
+        R r = decodeEnvelope(key, bytes, type);
 
-        //5. 判断是否过期
-        if(expireTime.isAfter(LocalDateTime.now())){
+        //5. 判断是否过期 直接读头部的过期时间
+        if(readExpireMillis(bytes) > System.currentTimeMillis()){
             //5.1 未过期 直接返回店铺
+            cacheMetrics.hit(keyPrefix);
             return r;
         }
+        cacheMetrics.staleServed(keyPrefix);
         //5.2 过期 需要缓存重建
         //6. 缓存重建
+        CompletableFuture<Object> rebuild = null;
+        if(singleFlight){
+            //本节点已经有线程在重建 直接返回旧数据
+            rebuild = new CompletableFuture<>();
+            if(inFlight.putIfAbsent(key, rebuild) != null){
+                coalescedCount.increment();
+                return r;
+            }
+        }
+        CompletableFuture<Object> finalRebuild = rebuild;
         //6.1 获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
+        String lockKey = lockKeyOf(key);
         boolean isLock = tryLock(lockKey);
         //6.2 判断是否获取锁成功
         if (isLock) {
-            //6.3 成功，开启独立线程，实现缓存重建
+            //6.3 成功，交给重建线程池异步重建
             //获取锁成功后应该再次检测redis缓存是否过期 做DoubleCheck 如果存在则无需重建缓存
-            CACHE_REBUILD_EXECUTOR.submit(()->{
+            boolean accepted = rebuildExecutor.submit(key, ()->{
                 try {
                     //查数据库
-                    R r1 = dbFallback.apply(id);
-                    this.setWithLogicExpire(keyPrefix+id,r1,Time,timeUnit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
+                    R r1 = loadFromDb(keyPrefix, id, dbFallback);
+                    if(r1 == null){
+                        //数据库中已经删除 删掉旧数据 否则会一直返回过期的数据
+                        delete(key);
+                    }else {
+                        this.setWithLogicExpire(key,r1,Time,timeUnit);
+                    }
                 }finally {
                     //释放锁
                     unlock(lockKey);
+                    finishRebuild(key, finalRebuild);
                 }
             });
+            if(!accepted){
+                //被去重或队列已满 释放锁 本次返回旧数据
+                unlock(lockKey);
+                finishRebuild(key, finalRebuild);
+            }
+        } else {
+            cacheMetrics.lockContention(keyPrefix);
+            finishRebuild(key, finalRebuild);
         }
 
         //6.4 返回过期的商铺信息
         return r;
     }
 
+    /**
+     * 概率提前刷新(XFetch) 缓存中保存过期时间和重建耗时
+     * 越接近过期 越有可能被某个读请求选中提前重建 热点key在过期前就会被刷新 无需加锁 也不会返回过期数据
+     */
+    public <R,ID> R queryWithEarlyRefresh(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback,
+                                          Long Time, TimeUnit timeUnit){
+        String key = keyPrefix + id;
+        //1. 从redis查询缓存
+        byte[] bytes = getRaw(key);
+        //2. 命中空值
+        if(isNullValue(bytes)){
+            cacheMetrics.nullHit(keyPrefix);
+            return null;
+        }
+        //3. 未命中 查库重建
+        R r = bytes == null || bytes.length < ENVELOPE_HEADER ? null : decodeEnvelope(key, bytes, type);
+        if(r == null){
+            cacheMetrics.miss(keyPrefix);
+            return singleFlight(key, () -> loadWithCost(keyPrefix, id, dbFallback, Time, timeUnit));
+        }
+        cacheMetrics.hit(keyPrefix);
+        //4. 命中 判断是否需要提前刷新 now - delta * beta * ln(rand) >= expireTime
+        long delta = readDeltaMillis(bytes);
+        double rand = 1 - ThreadLocalRandom.current().nextDouble();
+        long gap = (long) Math.min(-delta * CACHE_XFETCH_BETA * Math.log(rand), timeUnit.toMillis(Time));
+        if(System.currentTimeMillis() + gap < readExpireMillis(bytes)){
+            //4.1 不需要刷新 直接返回
+            return r;
+        }
+        //4.2 被选中 同步重建后返回最新数据
+        return singleFlight(key, () -> loadWithCost(keyPrefix, id, dbFallback, Time, timeUnit));
+    }
+
+    //查库并记录耗时 连同过期时间一起写入redis
+    private <R,ID> R loadWithCost(String keyPrefix, ID id, Function<ID,R> dbFallback, Long Time, TimeUnit timeUnit){
+        String key = keyPrefix + id;
+        long begin = System.currentTimeMillis();
+        R r = loadFromDb(keyPrefix, id, dbFallback);
+        long delta = System.currentTimeMillis() - begin;
+        if(r == null){
+            setNullValue(key);
+            return null;
+        }
+        long ttl = jitter(timeUnit.toMillis(Time));
+        RedisData redisData = new RedisData();
+        redisData.setData(r);
+        redisData.setDelta(delta);
+        redisData.setExpireTime(LocalDateTime.now().plus(ttl, ChronoUnit.MILLIS));
+        //真实过期时间与逻辑过期时间一致 没有被提前刷新的key到期后自然删除
+        setVersioned(key, r, encodeEnvelope(redisData), ttl);
+        return r;
+    }
+
+    //是热点且有可用的本地副本时返回副本 这里不计数
+    private <R> R getHotCopy(String key, Class<R> type){
+        if(!hotKeyDetector.isHot(key)){
+            return null;
+        }
+        HotCopy copy = hotCopies.get(key);
+        if(copy == null || copy.expireAt < System.currentTimeMillis() || !type.isInstance(copy.value)){
+            return null;
+        }
+        return type.cast(copy.value);
+    }
+
+    //本地命中不逐次计数 抽样记录并按采样间隔加权 已经由本地副本承接的热点不会因为不再访问redis而被降级
+    private void recordLocalHit(String key){
+        if(ThreadLocalRandom.current().nextInt(hotKeyLocalSample) == 0){
+            hotKeyDetector.record(key, hotKeyLocalSample);
+        }
+    }
+
+    //热点key从redis读到数据后保存本地副本 之后由后台刷新
+    private <R> void putHotCopy(String key, R value, Class<R> type){
+        if(hotKeyDetector.isHot(key)){
+            hotCopies.put(key, new HotCopy(value, () -> decode(key, getRaw(key), type),
+                    System.currentTimeMillis() + hotCopyTtlMillis));
+        }
+    }
+
+    //后台刷新热点key的本地副本 已经降级的删除
+    @Scheduled(fixedDelayString = "${hmdp.cache.hot-key.refresh-millis:1000}")
+    public void refreshHotCopies(){
+        for (Map.Entry<String, HotCopy> entry : hotCopies.entrySet()) {
+            String key = entry.getKey();
+            HotCopy copy = entry.getValue();
+            if(!hotKeyDetector.isHot(key)){
+                hotCopies.remove(key, copy);
+                continue;
+            }
+            try {
+                Object value = copy.loader.get();
+                if(value == null){
+                    //redis中已经没有了 交给正常的查询流程重建
+                    hotCopies.remove(key, copy);
+                }else {
+                    copy.value = value;
+                    copy.expireAt = System.currentTimeMillis() + hotCopyTtlMillis;
+                }
+            } catch (Exception e) {
+                log.warn("热点key本地副本刷新失败, key={}", key, e);
+            }
+        }
+    }
+
+    //当前持有本地副本的热点key
+    public Set<String> getHotKeys(){
+        return hotKeyDetector.getHotKeys();
+    }
+
+    //窗口内访问最多的key及访问次数
+    public Map<String, Long> getTopKeys(){
+        return hotKeyDetector.getTopKeys();
+    }
+
+    //热点key的本地副本
+    private static class HotCopy {
+        private volatile Object value;
+        private final Supplier<Object> loader;
+        private volatile long expireAt;
+
+        private HotCopy(Object value, Supplier<Object> loader, long expireAt) {
+            this.value = value;
+            this.loader = loader;
+            this.expireAt = expireAt;
+        }
+    }
+
+    //重建结束 移除本节点的重建标记
+    private void finishRebuild(String key, CompletableFuture<Object> rebuild){
+        if(rebuild != null){
+            inFlight.remove(key, rebuild);
+            rebuild.complete(null);
+        }
+    }
+
+    private static byte[] rawKey(String key){
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    //取数据的版本号 没有注册版本号函数时返回null
+    private Long versionOf(String keyPrefix, Object value){
+        Function<Object, Long> version = versionFunctions.get(keyPrefix);
+        return version == null || value == null ? null : version.apply(value);
+    }
+
+    //按key找到注册的版本号函数 前缀有包含关系时(cache:shop: 和 cache:shop:h:)取最长的
+    private Long versionOfKey(String key, Object value){
+        String prefix = null;
+        for (String p : versionFunctions.keySet()) {
+            if(key.startsWith(p) && (prefix == null || p.length() > prefix.length())){
+                prefix = p;
+            }
+        }
+        return prefix == null ? null : versionOf(prefix, value);
+    }
+
+    /**
+     * 带版本号写入缓存 所有写入缓存值的方法都经过这里
+     * @param ttlMillis 过期时间 0表示不过期(逻辑过期数据)
+     * @return false表示redis中已有更新的版本 本次没有写入
+     */
+    private boolean setVersioned(String key, Object value, byte[] bytes, long ttlMillis){
+        Long version = versionOfKey(key, value);
+        Long written = stringRedisTemplate.execute((RedisCallback<Long>) c -> setVersioned(c, key, bytes, ttlMillis, version));
+        return version == null || (written != null && written == 1);
+    }
+
+    //在连接(可以是pipeline)上执行写入 没有版本号时直接SET
+    private Long setVersioned(RedisConnection connection, String key, byte[] bytes, long ttlMillis, Long version){
+        if(version == null){
+            connection.set(rawKey(key), bytes,
+                    ttlMillis > 0 ? Expiration.milliseconds(ttlMillis) : Expiration.persistent(),
+                    RedisStringCommands.SetOption.upsert());
+            return 1L;
+        }
+        return connection.eval(SET_VERSIONED_SCRIPT.getScriptAsString().getBytes(StandardCharsets.UTF_8),
+                ReturnType.INTEGER, 2, rawKey(key), rawKey(key + CACHE_VERSION_SUFFIX), rawKey(version.toString()),
+                bytes, rawKey(String.valueOf(ttlMillis)), rawKey(String.valueOf(versionTtl(ttlMillis))));
+    }
+
+    //版本号至少保留versionTtl 也不短于数据本身的过期时间
+    private long versionTtl(long ttlMillis){
+        return Math.max(ttlMillis, versionTtlMillis);
+    }
+
+    //读取原始字节 不经过StringRedisTemplate的字符串序列化
+    private byte[] getRaw(String key){
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) c -> c.get(rawKey(key)));
+    }
+
+    //写入原始字节 Time为null时不设置过期时间
+    private void setRaw(String key, byte[] value, Long Time, TimeUnit timeUnit){
+        Expiration expiration = Time == null ? Expiration.persistent() : Expiration.from(Time, timeUnit);
+        stringRedisTemplate.execute((RedisCallback<Boolean>) c ->
+                c.set(rawKey(key), value, expiration, RedisStringCommands.SetOption.upsert()));
+    }
+
+    //空值用空字节表示
+    private void setNullValue(String key){
+        setRaw(key, new byte[0], jitter(TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL)), TimeUnit.MILLISECONDS);
+    }
+
+    //过期时间在±ttlJitter范围内随机浮动 且不低于最小值(原本就小于最小值的保持不变)
+    private long jitter(long ttlMillis){
+        if(ttlJitter <= 0){
+            return ttlMillis;
+        }
+        double factor = 1 + ThreadLocalRandom.current().nextDouble(-ttlJitter, ttlJitter);
+        return Math.max(Math.min(ttlMinMillis, ttlMillis), (long) (ttlMillis * factor));
+    }
+
+    /**
+     * 统计缓存key在未来一段时间内的过期分布 用于检查是否有大量key集中过期
+     * 逻辑过期的数据没有真实过期时间 读取头部的逻辑过期时间统计
+     * @param pattern key的匹配模式 例如cache:*
+     * @param minutes 统计未来多少分钟 每分钟一个桶
+     * @return total:扫描的key数 buckets:每分钟过期的数量 later:更晚过期的数量 persistent:永不过期的数量
+     */
+    public Map<String, Object> expiryReport(String pattern, int minutes){
+        long[] buckets = new long[minutes];
+        long[] counters = new long[3]; // total later persistent
+        long now = System.currentTimeMillis();
+        ScanOptions options = ScanOptions.scanOptions().match(pattern).count(1000).build();
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            try (Cursor<byte[]> cursor = connection.scan(options)) {
+                List<byte[]> keys = new ArrayList<>(1000);
+                while (cursor.hasNext()) {
+                    keys.add(cursor.next());
+                    if(keys.size() == 1000){
+                        countExpiry(keys, now, buckets, counters);
+                        keys.clear();
+                    }
+                }
+                countExpiry(keys, now, buckets, counters);
+            }
+            return null;
+        });
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("total", counters[0]);
+        report.put("buckets", buckets);
+        report.put("later", counters[1]);
+        report.put("persistent", counters[2]);
+        return report;
+    }
+
+    private void countExpiry(List<byte[]> keys, long now, long[] buckets, long[] counters){
+        if(keys.isEmpty()){
+            return;
+        }
+        //一次pipeline取出所有key的剩余时间
+        List<Object> ttls = stringRedisTemplate.executePipelined((RedisCallback<Object>) c -> {
+            keys.forEach(c::pTtl);
+            return null;
+        });
+        List<byte[]> noTtlKeys = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            long ttl = ((Number) ttls.get(i)).longValue();
+            if(ttl == -1){
+                noTtlKeys.add(keys.get(i));
+            }else if(ttl >= 0){
+                countBucket(now + ttl, now, buckets, counters);
+            }
+        }
+        //没有真实过期时间的key 读取逻辑过期的头部 首字节为0的才是逻辑过期数据
+        List<Object> headers = noTtlKeys.isEmpty() ? Collections.emptyList()
+                : stringRedisTemplate.executePipelined((RedisCallback<Object>) c -> {
+                    noTtlKeys.forEach(key -> c.getRange(key, 0, ENVELOPE_HEADER - 1));
+                    return null;
+                }, RedisSerializer.byteArray());
+        for (Object header : headers) {
+            byte[] bytes = (byte[]) header;
+            if(bytes != null && bytes.length == ENVELOPE_HEADER && bytes[0] == 0){
+                countBucket(readExpireMillis(bytes), now, buckets, counters);
+            }else {
+                counters[0]++;
+                counters[2]++;
+            }
+        }
+    }
+
+    private static void countBucket(long expireMillis, long now, long[] buckets, long[] counters){
+        counters[0]++;
+        int minute = (int) Math.max(0, (expireMillis - now) / 60000);
+        if(minute < buckets.length){
+            buckets[minute]++;
+        }else {
+            counters[1]++;
+        }
+    }
+
+    private static boolean isNullValue(byte[] bytes){
+        return bytes != null && bytes.length == 0;
+    }
+
+    //解码 格式不对(例如升级前写入的旧数据或切换了编码方式)当作未命中处理 并删除这个key
+    private <R> R decode(String key, byte[] bytes, Class<R> type){
+        if(bytes == null || bytes.length == 0){
+            return null;
+        }
+        try {
+            return cacheCodec.decode(bytes, type);
+        } catch (RuntimeException e) {
+            log.warn("缓存数据无法解析, 当作未命中处理, key={}", key, e);
+            try {
+                stringRedisTemplate.delete(key);
+            } catch (RuntimeException ex) {
+                log.debug("删除无法解析的缓存失败, key={}", key, ex);
+            }
+            return null;
+        }
+    }
+
+    //逻辑过期数据编码为 过期时间 + 重建耗时 + 数据
+    private byte[] encodeEnvelope(RedisData redisData){
+        long expireMillis = redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        long delta = redisData.getDelta() == null ? 0 : redisData.getDelta();
+        return encodeEnvelope(redisData.getData(), expireMillis, delta);
+    }
+
+    private byte[] encodeEnvelope(Object value, long expireMillis, long delta){
+        byte[] data = cacheCodec.encode(value);
+        return ByteBuffer.allocate(ENVELOPE_HEADER + data.length)
+                .putLong(expireMillis)
+                .putLong(delta)
+                .put(data)
+                .array();
+    }
+
+    private <R> R decodeEnvelope(String key, byte[] bytes, Class<R> type){
+        return decode(key, Arrays.copyOfRange(bytes, ENVELOPE_HEADER, bytes.length), type);
+    }
+
+    //只读头部 不需要反序列化数据
+    private static long readExpireMillis(byte[] bytes){
+        return ByteBuffer.wrap(bytes).getLong(0);
+    }
+
+    private static long readDeltaMillis(byte[] bytes){
+        return ByteBuffer.wrap(bytes).getLong(8);
+    }
+
     //获取互斥锁
     private boolean tryLock(String key){
         Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
@@ -0,0 +1,21 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存值的编解码
+ */
+public interface CacheCodec {
+    /**
+     * 编码
+     * @param value 要缓存的对象 不能为null
+     * @return 写入redis的字节
+     */
+    byte[] encode(Object value);
+
+    /**
+     * 解码
+     * @param bytes redis中读到的字节
+     * @param type 目标类型
+     * @return 对象 数据格式不匹配时抛出异常 调用方当作未命中处理
+     */
+    <T> T decode(byte[] bytes, Class<T> type);
+}
@@ -0,0 +1,89 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存指标 按key前缀打标签 通过actuator的/actuator/metrics查看
+ * cache.gets       查询结果 result=local_hit|hit|null_hit|miss|bloom_reject
+ * cache.load       查库耗时 found=true|false
+ * cache.lock.contention 重建锁竞争失败次数
+ * cache.stale      逻辑过期返回旧数据的次数
+ * 每个前缀的指标只注册一次 之后直接从map中取 不在每次查询时重新构建
+ */
+@Component
+public class CacheMetrics {
+
+    private final MeterRegistry registry;
+
+    //指标名+标签 -> 已注册的指标
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<String, Timer> loadTimers = new ConcurrentHashMap<>();
+
+    public CacheMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    public MeterRegistry getRegistry() {
+        return registry;
+    }
+
+    public void localHit(String keyPrefix) {
+        get(keyPrefix, "local_hit");
+    }
+
+    public void hit(String keyPrefix) {
+        get(keyPrefix, "hit");
+    }
+
+    public void nullHit(String keyPrefix) {
+        get(keyPrefix, "null_hit");
+    }
+
+    public void miss(String keyPrefix) {
+        get(keyPrefix, "miss");
+    }
+
+    public void bloomReject(String keyPrefix) {
+        get(keyPrefix, "bloom_reject");
+    }
+
+    /**
+     * 记录一次查库
+     * @param keyPrefix key前缀
+     * @param nanos 耗时(纳秒)
+     * @param found 数据库中是否存在
+     */
+    public void load(String keyPrefix, long nanos, boolean found) {
+        loadTimers.computeIfAbsent(keyPrefix + ":" + found, k -> Timer.builder("cache.load")
+                        .tag("prefix", keyPrefix)
+                        .tag("found", String.valueOf(found))
+                        .publishPercentileHistogram()
+                        .register(registry))
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void lockContention(String keyPrefix) {
+        counter("cache.lock.contention", keyPrefix, null).increment();
+    }
+
+    public void staleServed(String keyPrefix) {
+        counter("cache.stale", keyPrefix, null).increment();
+    }
+
+    private void get(String keyPrefix, String result) {
+        counter("cache.gets", keyPrefix, result).increment();
+    }
+
+    private Counter counter(String name, String keyPrefix, String result) {
+        return counters.computeIfAbsent(name + ":" + keyPrefix + ":" + result, k -> result == null
+                ? registry.counter(name, "prefix", keyPrefix)
+                : registry.counter(name, "prefix", keyPrefix, "result", result));
+    }
+}
@@ -0,0 +1,134 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 全局共享的缓存重建线程池
+ * 有界队列 同一个key同时只会有一个重建任务 队列满时按配置选择丢弃(继续返回旧数据)或由调用线程执行
+ */
+@Slf4j
+@Component
+public class CacheRebuildExecutor {
+
+    private final ThreadPoolExecutor executor;
+    //正在排队或执行中的key
+    private final Set<String> inFlightKeys = ConcurrentHashMap.newKeySet();
+    private final boolean callerRuns;
+    private final Duration shutdownTimeout;
+
+    private final Timer rebuildTimer;
+    private final Timer bulkTimer;
+    private final Counter rejectedCounter;
+    private final Counter dedupCounter;
+
+    public CacheRebuildExecutor(MeterRegistry registry,
+                                @Value("${hmdp.cache.rebuild.threads:10}") int threads,
+                                @Value("${hmdp.cache.rebuild.queue-capacity:1000}") int queueCapacity,
+                                @Value("${hmdp.cache.rebuild.rejection:skip}") String rejection,
+                                @Value("${hmdp.cache.rebuild.shutdown-timeout:10s}") Duration shutdownTimeout) {
+        AtomicInteger index = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> {
+                    Thread thread = new Thread(r, "cache-rebuild-" + index.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        this.callerRuns = "caller-runs".equalsIgnoreCase(rejection);
+        this.shutdownTimeout = shutdownTimeout;
+        this.rebuildTimer = Timer.builder("cache.rebuild").register(registry);
+        this.bulkTimer = Timer.builder("cache.rebuild.bulk").register(registry);
+        this.rejectedCounter = registry.counter("cache.rebuild.rejected");
+        this.dedupCounter = registry.counter("cache.rebuild.deduplicated");
+        Gauge.builder("cache.rebuild.queue", executor, e -> e.getQueue().size()).register(registry);
+        Gauge.builder("cache.rebuild.active", executor, ThreadPoolExecutor::getActiveCount).register(registry);
+    }
+
+    /**
+     * 提交重建任务
+     * @param key 缓存key 同一个key已有任务时不会重复提交
+     * @param task 重建逻辑 异常只记录日志
+     * @return true代表任务已被接受(或由调用线程执行完成) false代表被去重或被拒绝 调用方应释放自己持有的资源
+     */
+    public boolean submit(String key, Runnable task) {
+        if (!inFlightKeys.add(key)) {
+            dedupCounter.increment();
+            return false;
+        }
+        Runnable wrapped = () -> {
+            try {
+                rebuildTimer.record(task);
+            } catch (Exception e) {
+                log.error("缓存重建失败, key={}", key, e);
+            } finally {
+                inFlightKeys.remove(key);
+            }
+        };
+        try {
+            executor.execute(wrapped);
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejectedCounter.increment();
+            if (callerRuns && !executor.isShutdown()) {
+                wrapped.run();
+                return true;
+            }
+            //队列已满 放弃本次重建 调用方继续返回旧数据
+            inFlightKeys.remove(key);
+            log.warn("缓存重建队列已满, 跳过本次重建, key={}", key);
+            return false;
+        }
+    }
+
+    /**
+     * 提交批量写缓存的任务(缓存预热) 不按key去重 队列满时由调用线程执行 写得慢时自动降速
+     * 调用方需要自己限制同时提交的数量 避免占满队列影响正常的重建
+     * @return 任务执行完成或失败时结束的future
+     */
+    public CompletableFuture<Void> submitBulk(Runnable task) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        Runnable wrapped = () -> {
+            try {
+                bulkTimer.record(task);
+                future.complete(null);
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        };
+        try {
+            executor.execute(wrapped);
+        } catch (RejectedExecutionException e) {
+            rejectedCounter.increment();
+            wrapped.run();
+        }
+        return future;
+    }
+
+    //优雅停机 等待已提交的重建完成
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(shutdownTimeout.toMillis(), TimeUnit.MILLISECONDS)) {
+            log.warn("缓存重建线程池未能在{}内结束, 剩余{}个任务", shutdownTimeout, executor.getQueue().size());
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存查询策略 对应CacheClient中的几种查询方式
+ */
+public enum CacheStrategy {
+    //缓存空值解决缓存穿透
+    PASS_THROUGH,
+    //互斥锁解决缓存击穿
+    MUTEX,
+    //逻辑过期解决缓存击穿 缓存中没有数据时查库并写入
+    LOGICAL_EXPIRE
+}
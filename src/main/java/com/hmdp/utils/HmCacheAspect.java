@@ -0,0 +1,148 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.springframework.core.DefaultParameterNameDiscoverer;
+import org.springframework.core.ParameterNameDiscoverer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * 处理@HmCacheable和@HmCacheEvict 实际的缓存逻辑都交给CacheClient
+ * 每个方法的key表达式只在第一次调用时解析一次 之后直接按参数下标和getter取值
+ */
+@Slf4j
+@Aspect
+@Component
+public class HmCacheAspect {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    private final ParameterNameDiscoverer nameDiscoverer = new DefaultParameterNameDiscoverer();
+
+    //方法 -> 编译好的key取值函数
+    private final Map<Method, Function<Object[], Object>> keyResolvers = new ConcurrentHashMap<>();
+
+    @Around("@annotation(cacheable)")
+    public Object cacheable(ProceedingJoinPoint pjp, HmCacheable cacheable) throws Throwable {
+        Method method = ((MethodSignature) pjp.getSignature()).getMethod();
+        Object id = resolveKey(method, cacheable.key(), pjp.getArgs());
+        if(id == null){
+            return pjp.proceed();
+        }
+        @SuppressWarnings("unchecked")
+        Class<Object> type = (Class<Object>) method.getReturnType();
+        Function<Object, Object> dbFallback = ignored -> invoke(pjp);
+        String prefix = cacheable.prefix();
+        Long ttl = cacheable.ttl();
+        try {
+            switch (cacheable.strategy()) {
+                case MUTEX:
+                    return cacheClient.queryWithMutex(prefix, id, type, dbFallback,
+                            ttl, cacheable.unit(), cacheable.singleFlight());
+                case LOGICAL_EXPIRE:
+                    Object r = cacheClient.queryWithLogicExpire(prefix, id, type, dbFallback,
+                            ttl, cacheable.unit(), cacheable.singleFlight());
+                    if(r != null){
+                        return r;
+                    }
+                    //缓存中还没有 查库后写入 之后由逻辑过期机制负责刷新
+                    r = invoke(pjp);
+                    if(r != null){
+                        cacheClient.setWithLogicExpire(prefix + id, r, ttl, cacheable.unit());
+                    }
+                    return r;
+                default:
+                    return cacheClient.queryWithPassThrough(prefix, id, type, dbFallback,
+                            ttl, cacheable.unit(), cacheable.singleFlight());
+            }
+        } catch (InvocationFailure e) {
+            //还原目标方法自己抛出的异常
+            throw e.getCause();
+        }
+    }
+
+    @Around("@annotation(evict)")
+    public Object evict(ProceedingJoinPoint pjp, HmCacheEvict evict) throws Throwable {
+        Object result = pjp.proceed();
+        Method method = ((MethodSignature) pjp.getSignature()).getMethod();
+        Object id = resolveKey(method, evict.key(), pjp.getArgs());
+        if(id != null && !Boolean.FALSE.equals(result)){
+            cacheClient.delete(evict.prefix() + id);
+        }
+        return result;
+    }
+
+    private Object resolveKey(Method method, String expression, Object[] args) {
+        return keyResolvers.computeIfAbsent(method, m -> compile(m, expression)).apply(args);
+    }
+
+    //把key表达式解析成 参数下标 + 可选的getter
+    private Function<Object[], Object> compile(Method method, String expression) {
+        if(StrUtil.isBlank(expression)){
+            return args -> args.length == 0 ? null : args[0];
+        }
+        String paramName = StrUtil.subBefore(expression, ".", false);
+        String property = expression.contains(".") ? StrUtil.subAfter(expression, ".", false) : null;
+        String[] names = nameDiscoverer.getParameterNames(method);
+        int index = -1;
+        for (int i = 0; names != null && i < names.length; i++) {
+            if(names[i].equals(paramName)){
+                index = i;
+                break;
+            }
+        }
+        if(index < 0){
+            throw new IllegalStateException("缓存key表达式找不到参数: " + expression + " @ " + method);
+        }
+        int finalIndex = index;
+        if(property == null){
+            return args -> args[finalIndex];
+        }
+        PropertyDescriptor descriptor = BeanUtil.getPropertyDescriptor(method.getParameterTypes()[index], property);
+        if(descriptor == null || descriptor.getReadMethod() == null){
+            throw new IllegalStateException("缓存key表达式找不到属性: " + expression + " @ " + method);
+        }
+        Method getter = descriptor.getReadMethod();
+        return args -> {
+            Object arg = args[finalIndex];
+            if(arg == null){
+                return null;
+            }
+            try {
+                return getter.invoke(arg);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        };
+    }
+
+    private static Object invoke(ProceedingJoinPoint pjp) {
+        try {
+            return pjp.proceed();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new InvocationFailure(e);
+        }
+    }
+
+    //在Function中传递目标方法的受检异常
+    private static class InvocationFailure extends RuntimeException {
+        private InvocationFailure(Throwable cause) {
+            super(cause);
+        }
+    }
+}
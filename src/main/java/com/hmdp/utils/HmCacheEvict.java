@@ -0,0 +1,26 @@
+package com.hmdp.utils;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 方法执行成功后删除缓存 缓存key为 prefix + key表达式的值
+ */
+@Documented
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface HmCacheEvict {
+
+    /**
+     * 缓存key前缀 如 cache:blog:
+     */
+    String prefix();
+
+    /**
+     * 取哪个参数作为id 参数名或 参数名.属性名 为空时取第一个参数
+     */
+    String key() default "";
+}
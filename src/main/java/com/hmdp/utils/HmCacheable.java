@@ -0,0 +1,42 @@
+package com.hmdp.utils;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 方法返回值走CacheClient缓存 缓存key为 prefix + key表达式的值
+ * 方法本身作为查询数据库的逻辑 只在缓存未命中时执行
+ */
+@Documented
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface HmCacheable {
+
+    /**
+     * 缓存key前缀 如 cache:blog:
+     */
+    String prefix();
+
+    /**
+     * 取哪个参数作为id 参数名或 参数名.属性名 为空时取第一个参数
+     */
+    String key() default "";
+
+    /**
+     * 缓存时间
+     */
+    long ttl() default 30;
+
+    TimeUnit unit() default TimeUnit.MINUTES;
+
+    CacheStrategy strategy() default CacheStrategy.PASS_THROUGH;
+
+    /**
+     * 同一节点同一个key的并发未命中是否合并为一次查询
+     */
+    boolean singleFlight() default true;
+}
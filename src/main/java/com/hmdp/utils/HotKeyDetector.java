@@ -0,0 +1,199 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.hmdp.utils.RedisConstants.CACHE_HOT_KEY_CHANNEL;
+
+/**
+ * 热点key探测 滑动窗口 + Count-Min Sketch + Top-K
+ * 窗口分成若干个时间片 每个时间片一个sketch 只占用固定内存 不需要为每个key保存计数
+ * 另外只保留窗口内访问次数最多的topK个候选key
+ * 进入Top-K并且窗口内访问次数超过阈值的key晋升为热点 热点数量不会超过topK
+ * 低于阈值一半或者被挤出Top-K时降级 变化通过redis频道广播
+ */
+@Slf4j
+@Component
+public class HotKeyDetector {
+
+    //每个sketch的哈希函数个数
+    private static final int DEPTH = 4;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final MeterRegistry registry;
+    private final int width;
+    private final long threshold;
+    private final int topK;
+    //每个时间片一个sketch 大小为DEPTH*width
+    private final AtomicLongArray[] slots;
+    private volatile int current;
+
+    private final Set<String> hotKeys = ConcurrentHashMap.newKeySet();
+    //Top-K候选 key -> 窗口内访问次数的估计值
+    private final Map<String, Long> topKeys = new ConcurrentHashMap<>();
+    //候选已满时其中最小的估计值 超过它才能挤进Top-K
+    private volatile long topFloor;
+
+    public HotKeyDetector(StringRedisTemplate stringRedisTemplate, MeterRegistry registry,
+                          @Value("${hmdp.cache.hot-key.threshold:1000}") long threshold,
+                          @Value("${hmdp.cache.hot-key.slots:10}") int slotCount,
+                          @Value("${hmdp.cache.hot-key.width:2048}") int width,
+                          @Value("${hmdp.cache.hot-key.top-k:100}") int topK) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.registry = registry;
+        this.threshold = threshold;
+        this.width = width;
+        this.topK = topK;
+        this.slots = new AtomicLongArray[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new AtomicLongArray(DEPTH * width);
+        }
+        Gauge.builder("cache.hotkey.count", hotKeys, Set::size).register(registry);
+    }
+
+    /**
+     * 记录一次访问
+     * @return 该key当前是否为热点
+     */
+    public boolean record(String key) {
+        return record(key, 1);
+    }
+
+    /**
+     * 记录weight次访问 采样记录时用采样间隔作为权重 估计值和逐次记录一致
+     * @return 该key当前是否为热点
+     */
+    public boolean record(String key, int weight) {
+        int[] index = index(key);
+        AtomicLongArray slot = slots[current];
+        for (int i = 0; i < DEPTH; i++) {
+            slot.addAndGet(index[i], weight);
+        }
+        if (hotKeys.contains(key)) {
+            return true;
+        }
+        //窗口内的访问次数 每个时间片只读DEPTH个计数 固定开销
+        long count = estimate(index);
+        offerTop(key, count);
+        if (count < threshold || !topKeys.containsKey(key)) {
+            return false;
+        }
+        if (hotKeys.add(key)) {
+            publish("promote", key);
+        }
+        return true;
+    }
+
+    public boolean isHot(String key) {
+        return hotKeys.contains(key);
+    }
+
+    public Set<String> getHotKeys() {
+        return new HashSet<>(hotKeys);
+    }
+
+    /**
+     * Top-K候选 按窗口内访问次数从大到小排列
+     */
+    public Map<String, Long> getTopKeys() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        topKeys.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .forEach(e -> result.put(e.getKey(), e.getValue()));
+        return result;
+    }
+
+    //更新Top-K候选 只有挤进前K个时才加锁
+    private void offerTop(String key, long count) {
+        if (topKeys.containsKey(key)) {
+            topKeys.put(key, count);
+            return;
+        }
+        if (topKeys.size() >= topK && count <= topFloor) {
+            return;
+        }
+        synchronized (topKeys) {
+            topKeys.put(key, count);
+            while (topKeys.size() > topK) {
+                topKeys.entrySet().stream()
+                        .min(Map.Entry.comparingByValue())
+                        .ifPresent(e -> topKeys.remove(e.getKey()));
+            }
+            updateTopFloor();
+        }
+    }
+
+    private void updateTopFloor() {
+        topFloor = topKeys.size() < topK ? 0
+                : topKeys.values().stream().mapToLong(Long::longValue).min().orElse(0);
+    }
+
+    //滑动窗口 清空最旧的时间片作为新的当前时间片 同时检查热点是否降级
+    @Scheduled(fixedRateString = "${hmdp.cache.hot-key.slot-millis:1000}")
+    public void rotate() {
+        int next = (current + 1) % slots.length;
+        AtomicLongArray slot = slots[next];
+        for (int i = 0; i < slot.length(); i++) {
+            slot.set(i, 0);
+        }
+        current = next;
+        //最旧的时间片清空后重新估计候选 窗口内没有访问的移出
+        synchronized (topKeys) {
+            for (String key : topKeys.keySet()) {
+                long count = estimate(index(key));
+                if (count == 0) {
+                    topKeys.remove(key);
+                } else {
+                    topKeys.put(key, count);
+                }
+            }
+            updateTopFloor();
+        }
+        for (String key : hotKeys) {
+            if ((estimate(index(key)) < threshold / 2 || !topKeys.containsKey(key)) && hotKeys.remove(key)) {
+                publish("demote", key);
+            }
+        }
+    }
+
+    //整个窗口内的访问次数估计值 每个时间片取DEPTH行中的最小值再求和
+    private long estimate(int[] index) {
+        long total = 0;
+        for (AtomicLongArray slot : slots) {
+            long min = Long.MAX_VALUE;
+            for (int i = 0; i < DEPTH; i++) {
+                min = Math.min(min, slot.get(index[i]));
+            }
+            total += min;
+        }
+        return total;
+    }
+
+    private int[] index(String key) {
+        long[] hash = MurmurHash.hash128(key);
+        int[] index = new int[DEPTH];
+        for (int i = 0; i < DEPTH; i++) {
+            index[i] = i * width + (int) Math.floorMod(hash[0] + i * hash[1], (long) width);
+        }
+        return index;
+    }
+
+    private void publish(String action, String key) {
+        log.info("热点key{}: {}", "promote".equals(action) ? "晋升" : "降级", key);
+        registry.counter("cache.hotkey", "action", action).increment();
+        stringRedisTemplate.convertAndSend(CACHE_HOT_KEY_CHANNEL, action + " " + key);
+    }
+}
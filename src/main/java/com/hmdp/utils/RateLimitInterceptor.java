@@ -0,0 +1,93 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.Validator;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.config.RateLimitProperties;
+import com.hmdp.dto.UserDTO;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.List;
+
+//限流拦截器 在token刷新之后执行 按用户限流时才能拿到登录用户
+public class RateLimitInterceptor implements HandlerInterceptor {
+
+    private static final AntPathMatcher PATH_MATCHER = new AntPathMatcher();
+
+    private final RateLimiter rateLimiter;
+    private final RateLimitProperties properties;
+
+    public RateLimitInterceptor(RateLimiter rateLimiter, RateLimitProperties properties) {
+        this.rateLimiter = rateLimiter;
+        this.properties = properties;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        if (!properties.isEnabled()) {
+            return true;
+        }
+        String path = request.getRequestURI();
+        for (RateLimitProperties.Rule rule : properties.getRules()) {
+            if (!PATH_MATCHER.match(rule.getPath(), path)) {
+                continue;
+            }
+            if (!rateLimiter.tryAcquire(rule, dimensionOf(rule, request, path))) {
+                //令牌不足 设置状态码 429
+                response.setStatus(429);
+                response.setHeader("Retry-After", "1");
+                return false;
+            }
+        }
+        //放行
+        return true;
+    }
+
+    //按规则的维度取桶的标识
+    private String dimensionOf(RateLimitProperties.Rule rule, HttpServletRequest request, String path) {
+        switch (rule.getDimension()) {
+            case PATH:
+                return path;
+            case USER:
+                UserDTO user = UserHolder.getUser();
+                //未登录时按ip
+                return user != null ? user.getId().toString() : ipOf(request);
+            case IP:
+                return ipOf(request);
+            default:
+                return "all";
+        }
+    }
+
+    //默认取直连地址 X-Forwarded-For可以被客户端伪造 只有直连的是可信代理时才读取
+    //从右往左跳过可信代理 第一个不可信的地址就是真实客户端 左边的部分可能是客户端自己填的
+    private String ipOf(HttpServletRequest request) {
+        String remote = request.getRemoteAddr();
+        String forwarded = request.getHeader("X-Forwarded-For");
+        if (StrUtil.isBlank(forwarded) || !isTrustedProxy(remote)) {
+            return remote;
+        }
+        List<String> hops = StrUtil.split(forwarded, ',', true, true);
+        for (int i = hops.size() - 1; i >= 0; i--) {
+            if (!isTrustedProxy(hops.get(i))) {
+                return hops.get(i);
+            }
+        }
+        return hops.isEmpty() ? remote : hops.get(0);
+    }
+
+    private boolean isTrustedProxy(String ip) {
+        for (String proxy : properties.getTrustedProxies()) {
+            if (proxy.equals(ip)) {
+                return true;
+            }
+            if (proxy.contains("/") && Validator.isIpv4(ip) && NetUtil.isInRange(ip, proxy)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
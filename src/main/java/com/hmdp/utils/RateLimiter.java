@@ -0,0 +1,144 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.RateLimitProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.RATE_LIMIT_KEY;
+
+/**
+ * 分布式令牌桶限流 redis中的桶是全局的 各节点按规则的prefetch一次预取多个令牌放在本地桶中
+ * 本地有令牌时不访问redis 全局桶空了以后本地在补充出一个令牌前直接拒绝 不会每个请求都打到redis
+ */
+@Slf4j
+@Component
+public class RateLimiter {
+
+    private static final DefaultRedisScript<List> RATE_LIMIT_SCRIPT;
+    static {
+        RATE_LIMIT_SCRIPT = new DefaultRedisScript<>();
+        RATE_LIMIT_SCRIPT.setLocation(new ClassPathResource("rate_limit.lua"));
+        RATE_LIMIT_SCRIPT.setResultType(List.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RateLimitProperties properties;
+    private final MeterRegistry registry;
+
+    //redis key -> 本地桶
+    private final Map<String, LocalBucket> localBuckets = new ConcurrentHashMap<>();
+    //规则名 -> 最近一次从redis得到的剩余令牌数
+    private final Map<String, AtomicLong> remainingTokens = new ConcurrentHashMap<>();
+    private final Map<String, Counter> rejectedCounters = new ConcurrentHashMap<>();
+    //redis异常时放行的请求数
+    private final Counter errorCounter;
+
+    public RateLimiter(StringRedisTemplate stringRedisTemplate, RateLimitProperties properties, MeterRegistry registry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.properties = properties;
+        this.registry = registry;
+        this.errorCounter = registry.counter("ratelimit.errors");
+        Gauge.builder("ratelimit.local.buckets", localBuckets, Map::size).register(registry);
+    }
+
+    /**
+     * 从规则对应的桶中取一个令牌 取不到返回false
+     * @param id 维度的值 例如用户id或ip
+     */
+    public boolean tryAcquire(RateLimitProperties.Rule rule, String id) {
+        String key = RATE_LIMIT_KEY + rule.getName() + ":" + id;
+        boolean allowed;
+        try {
+            allowed = localBuckets.computeIfAbsent(key, k -> new LocalBucket(rule, k)).tryAcquire();
+        } catch (Exception e) {
+            //redis不可用时放行 限流故障不能影响正常请求
+            log.warn("限流失败 放行请求, key={}", key, e);
+            errorCounter.increment();
+            return true;
+        }
+        if (!allowed) {
+            rejectedCounters.computeIfAbsent(rule.getName(),
+                    name -> registry.counter("ratelimit.rejected", "rule", name)).increment();
+        }
+        return allowed;
+    }
+
+    //从redis的全局桶中取令牌 返回实际取到的数量
+    private long acquireRemote(RateLimitProperties.Rule rule, String key, long requested) {
+        List<?> result = stringRedisTemplate.execute(RATE_LIMIT_SCRIPT, Collections.singletonList(key),
+                String.valueOf(rule.getCapacity()), String.valueOf(rule.getRate()),
+                String.valueOf(System.currentTimeMillis()), String.valueOf(requested));
+        if (result == null || result.size() < 2) {
+            throw new IllegalStateException("限流脚本返回结果错误, key=" + key);
+        }
+        remainingTokens.computeIfAbsent(rule.getName(), name -> {
+            AtomicLong remaining = new AtomicLong();
+            Gauge.builder("ratelimit.tokens.remaining", remaining, AtomicLong::get)
+                    .tag("rule", name).register(registry);
+            return remaining;
+        }).set(((Number) result.get(1)).longValue());
+        return ((Number) result.get(0)).longValue();
+    }
+
+    //清理已经没有令牌也不在拒绝期内的本地桶 按用户和ip限流时桶的数量会一直增长
+    @Scheduled(fixedDelayString = "${hmdp.rate-limit.cleanup-millis:10000}")
+    public void cleanupLocalBuckets() {
+        long now = System.currentTimeMillis();
+        localBuckets.values().removeIf(bucket -> bucket.isIdle(now));
+    }
+
+    private class LocalBucket {
+        private final RateLimitProperties.Rule rule;
+        private final String key;
+        //预取到本地还没用的令牌 以及它们的作废时间
+        private long tokens;
+        private long expireAt;
+        //全局桶已空 这个时间之前直接拒绝
+        private long emptyUntil;
+
+        private LocalBucket(RateLimitProperties.Rule rule, String key) {
+            this.rule = rule;
+            this.key = key;
+        }
+
+        private synchronized boolean tryAcquire() {
+            long now = System.currentTimeMillis();
+            //1. 本地还有没作废的令牌 直接扣减
+            if (tokens > 0 && expireAt > now) {
+                tokens--;
+                return true;
+            }
+            //2. 全局桶刚被取空 补充出一个令牌之前不再访问redis
+            if (emptyUntil > now) {
+                return false;
+            }
+            //3. 从redis预取一批令牌 不足时有多少取多少
+            long granted = acquireRemote(rule, key, Math.max(1, rule.getPrefetch()));
+            if (granted <= 0) {
+                tokens = 0;
+                emptyUntil = now + (long) Math.ceil(1000 / rule.getRate());
+                return false;
+            }
+            tokens = granted - 1;
+            expireAt = now + properties.getPrefetchTtl().toMillis();
+            return true;
+        }
+
+        private synchronized boolean isIdle(long now) {
+            return (tokens == 0 || expireAt <= now) && emptyUntil <= now;
+        }
+    }
+}
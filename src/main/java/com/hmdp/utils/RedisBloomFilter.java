@@ -0,0 +1,171 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.lang.hash.MurmurHash;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * 基于Redis bitmap的布隆过滤器 所有节点共享同一份数据
+ * 用于拦截一定不存在的id 防止缓存穿透
+ */
+@Slf4j
+public class RedisBloomFilter {
+
+    private static final String KEY_PREFIX = "bloom:";
+    //重建时每批写入的bit数
+    private static final int BATCH_SIZE = 10000;
+    //重建标记的存活时间 每写一批续期 重建的节点挂掉后标记自动消失
+    private static final long REBUILDING_TTL_SECONDS = 300;
+    private static final DefaultRedisScript<Long> CONTAINS_SCRIPT;
+    private static final DefaultRedisScript<Long> ADD_SCRIPT;
+    static {
+        CONTAINS_SCRIPT = new DefaultRedisScript<>();
+        CONTAINS_SCRIPT.setLocation(new ClassPathResource("bloom.lua"));
+        CONTAINS_SCRIPT.setResultType(Long.class);
+        ADD_SCRIPT = new DefaultRedisScript<>();
+        ADD_SCRIPT.setLocation(new ClassPathResource("bloom_add.lua"));
+        ADD_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedissonClient redissonClient;
+    private final String key;
+    //保存正在重建的临时key的名字
+    private final String rebuildingKey;
+    //bit数组长度
+    private final long numBits;
+    //哈希函数个数
+    private final int numHashFunctions;
+
+    /**
+     * @param name 过滤器名称 例如shop
+     * @param expectedInsertions 预计元素数量
+     * @param fpp 期望的误判率
+     */
+    public RedisBloomFilter(String name, long expectedInsertions, double fpp,
+                            StringRedisTemplate stringRedisTemplate, RedissonClient redissonClient) {
+        this.key = KEY_PREFIX + name;
+        this.rebuildingKey = key + ":rebuilding";
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.redissonClient = redissonClient;
+        // m = -n*ln(p)/(ln2)^2  k = m/n*ln2
+        long n = Math.max(1, expectedInsertions);
+        this.numBits = Math.max(64, (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2))));
+        this.numHashFunctions = Math.max(1, (int) Math.round((double) numBits / n * Math.log(2)));
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * 添加元素 正在重建时同时写入重建中的临时key
+     */
+    public void add(Object id) {
+        stringRedisTemplate.execute(ADD_SCRIPT, Arrays.asList(key, rebuildingKey), offsetArgs(id));
+    }
+
+    /**
+     * 判断元素是否可能存在 返回false则一定不存在
+     * 过滤器还没有构建时一律返回true
+     */
+    public boolean mightContain(Object id) {
+        Long result = stringRedisTemplate.execute(CONTAINS_SCRIPT, Collections.singletonList(key), offsetArgs(id));
+        return result == null || result != 0;
+    }
+
+    /**
+     * 用全量id重建过滤器 先写入本次重建独有的临时key 再rename覆盖 重建过程中不影响查询
+     * 同一时间只有一个节点重建 其他节点拿不到锁直接返回false
+     * 先登记临时key再查询全量id 登记之后新增的id由add同时写入临时key 登记之前新增的id已经在查询结果中
+     * @param idsSupplier 查询全量id 在拿到锁并登记临时key之后调用
+     */
+    public boolean rebuild(Supplier<Collection<?>> idsSupplier) {
+        RLock lock = redissonClient.getLock("lock:" + key);
+        //不指定释放时间 由看门狗续期 重建时间长短不影响
+        if (!lock.tryLock()) {
+            log.info("其他节点正在重建布隆过滤器, key={}", key);
+            return false;
+        }
+        String tmpKey = key + ":tmp:" + UUID.fastUUID().toString(true);
+        try {
+            byte[] rawKey = tmpKey.getBytes(StandardCharsets.UTF_8);
+            //1. 先写最后一个bit 一次性分配好空间 同时保证空表也能生成key
+            stringRedisTemplate.opsForValue().setBit(tmpKey, numBits - 1, false);
+            //2. 登记临时key 之后add的id会同时写入临时key
+            stringRedisTemplate.opsForValue().set(rebuildingKey, tmpKey, REBUILDING_TTL_SECONDS, TimeUnit.SECONDS);
+            //3. 查询全量id 分批写入临时key
+            List<Object> batch = new ArrayList<>(BATCH_SIZE);
+            for (Object id : idsSupplier.get()) {
+                batch.add(id);
+                if (batch.size() * numHashFunctions >= BATCH_SIZE) {
+                    writeBatch(rawKey, batch);
+                    batch.clear();
+                    stringRedisTemplate.expire(rebuildingKey, REBUILDING_TTL_SECONDS, TimeUnit.SECONDS);
+                }
+            }
+            writeBatch(rawKey, batch);
+            //4. 覆盖正式key 再取消登记 rename之后add会写入正式key
+            stringRedisTemplate.rename(tmpKey, key);
+            return true;
+        } finally {
+            stringRedisTemplate.delete(Arrays.asList(rebuildingKey, tmpKey));
+            lock.unlock();
+        }
+    }
+
+    private void writeBatch(byte[] rawKey, List<Object> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Object id : batch) {
+                setBits(connection, rawKey, id);
+            }
+            return null;
+        });
+    }
+
+    private void setBits(RedisConnection connection, byte[] rawKey, Object id) {
+        for (long offset : offsets(id)) {
+            connection.setBit(rawKey, offset, true);
+        }
+    }
+
+    private Object[] offsetArgs(Object id) {
+        long[] offsets = offsets(id);
+        Object[] args = new Object[offsets.length];
+        for (int i = 0; i < offsets.length; i++) {
+            args[i] = String.valueOf(offsets[i]);
+        }
+        return args;
+    }
+
+    //双重哈希 g(i) = h1 + i*h2 计算k个bit位置
+    private long[] offsets(Object id) {
+        long[] hash = MurmurHash.hash128(String.valueOf(id));
+        long[] offsets = new long[numHashFunctions];
+        long combined = hash[0];
+        for (int i = 0; i < numHashFunctions; i++) {
+            offsets[i] = (combined & Long.MAX_VALUE) % numBits;
+            combined += hash[1];
+        }
+        return offsets;
+    }
+}
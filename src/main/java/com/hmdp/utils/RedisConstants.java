@@ -7,14 +7,53 @@ public class RedisConstants {
     public static final Long LOGIN_USER_TTL = 36000L;
 
     public static final Long CACHE_NULL_TTL = 2L;
+    //提前刷新的激进程度 越大越早刷新
+    public static final double CACHE_XFETCH_BETA = 1.0;
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    //店铺的hash结构缓存 可以只读部分字段
+    public static final String CACHE_SHOP_HASH_KEY = "cache:shop:h:";
+
+    public static final Long CACHE_BLOG_TTL = 30L;
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final String CACHE_USER_INFO_KEY = "cache:user:info:";
+
+    //版本号key的后缀 缓存key + 后缀
+    public static final String CACHE_VERSION_SUFFIX = ":ver";
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String CACHE_HOT_KEY_CHANNEL = "cache:hotkey";
+    //缓存重建锁 lock:{缓存key} 以及重建完成的通知频道 消息内容是锁的key
+    public static final String CACHE_LOCK_PREFIX = "lock:";
+    public static final String CACHE_REBUILT_CHANNEL = "cache:rebuilt";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    //秒杀券的库存分片数 没有这个key表示不分片
+    public static final String SECKILL_SHARDS_KEY = "seckill:shards:";
+    //分片的秒杀券id集合 订单消费者为其中每张券的每个分片stream启动消费者
+    public static final String SECKILL_SHARDED_KEY = "seckill:sharded";
+    //已经抢到某张秒杀券的用户集合 一人一单
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    //秒杀订单消息队列和消费者组
+    public static final String SECKILL_ORDER_STREAM = "stream.orders";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    //秒杀券售罄和补货的广播频道
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    //秒杀券的开始结束时间 以及修改后通知各节点清除本地缓存的频道
+    public static final String SECKILL_VOUCHER_KEY = "seckill:voucher:";
+    public static final String SECKILL_VOUCHER_CHANNEL = "seckill:voucher";
+    //未支付订单的超时取消队列 zset 订单id -> 超时时间
+    public static final String ORDER_TIMEOUT_QUEUE = "delay:order:timeout";
+    //限流令牌桶 rate:limit:{规则名}:{维度值}
+    public static final String RATE_LIMIT_KEY = "rate:limit:";
+    //雪花算法机器id的租约 以及每个机器id用过的最大时间戳
+    public static final String SNOWFLAKE_WORKER_KEY = "snowflake:worker:";
+    public static final String SNOWFLAKE_LAST_KEY = "snowflake:last:";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
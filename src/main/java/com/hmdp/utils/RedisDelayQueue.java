@@ -0,0 +1,73 @@
+package com.hmdp.utils;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 基于zset的延迟队列 score为到期时间(毫秒)
+ * 取出到期元素和延后重试时间在一个脚本中原子完成 多个节点同时轮询也不会重复处理
+ * 处理成功后删除 处理失败或节点挂掉的元素到重试时间后会被再次取出
+ * 只按score范围读取 元素数量再多也不需要扫描
+ */
+@Component
+public class RedisDelayQueue {
+
+    private static final DefaultRedisScript<List> POLL_SCRIPT;
+    static {
+        POLL_SCRIPT = new DefaultRedisScript<>();
+        POLL_SCRIPT.setLocation(new ClassPathResource("delay_queue_poll.lua"));
+        POLL_SCRIPT.setResultType(List.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 批量加入延迟队列 已经存在的元素更新到期时间
+     * @param items 元素 -> 到期时间(毫秒)
+     */
+    public void offer(String queue, Map<String, Long> items){
+        if(items.isEmpty()){
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            items.forEach((item, deadline) -> conn.zAdd(queue, deadline, item));
+            return null;
+        });
+    }
+
+    /**
+     * 取出最多limit个已到期的元素 取出的元素在retryMillis之后还没有ack会被再次取出
+     */
+    @SuppressWarnings("unchecked")
+    public List<String> poll(String queue, int limit, long retryMillis){
+        long now = System.currentTimeMillis();
+        List<String> items = stringRedisTemplate.execute(POLL_SCRIPT, Collections.singletonList(queue),
+                String.valueOf(now), String.valueOf(limit), String.valueOf(now + retryMillis));
+        return items == null ? Collections.emptyList() : items;
+    }
+
+    //处理完成 从队列中删除
+    public void ack(String queue, Collection<String> items){
+        if(items.isEmpty()){
+            return;
+        }
+        stringRedisTemplate.opsForZSet().remove(queue, items.toArray());
+    }
+
+    public long size(String queue){
+        Long size = stringRedisTemplate.opsForZSet().zCard(queue);
+        return size == null ? 0 : size;
+    }
+}
@@ -1,22 +1,57 @@
 package com.hmdp.utils;
 
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
+@Slf4j
 @Component
 public class RedisIdWorker {
-    private static final long BEGIN_TIMESTAMP = 1640995200L;
+    static final long BEGIN_TIMESTAMP = 1640995200L;
     //序列号的位数
     private static final int COUNT_BITS = 32;
 
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    //号段模式 每次从redis预取一段序列号 本地递增分配
+    @Value("${hmdp.id.segment.enabled:true}")
+    private boolean segmentEnabled;
+    @Value("${hmdp.id.segment.min-step:100}")
+    private long minStep;
+    @Value("${hmdp.id.segment.max-step:100000}")
+    private long maxStep;
+    //期望一个号段用多久 用得更快就加大步长 更慢就减小
+    @Value("${hmdp.id.segment.target-millis:10000}")
+    private long targetMillis;
+    //号段用掉这个比例后异步预取下一段
+    @Value("${hmdp.id.segment.prefetch-ratio:0.8}")
+    private double prefetchRatio;
+
+    //keyPrefix -> 号段
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-segment-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     public long nextId(String keyPrefix){
         //1. 生成时间戳
         LocalDateTime now = LocalDateTime.now();
@@ -25,14 +60,129 @@ public class RedisIdWorker {
 
         //2. 生成序列号
         //2.1 获取日期 精确到天 拼接到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        //2.2 自增长
-        long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        String date = now.format(DATE_FORMATTER);
+        //2.2 自增长 号段模式下从本地号段中取
+        long count = segmentEnabled
+                ? buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new).next(date)
+                : stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
 
         //3. 拼接并返回
         return timeStamp<<COUNT_BITS | count;
     }
 
+    @PreDestroy
+    public void shutdown(){
+        prefetchExecutor.shutdownNow();
+    }
+
+    //一段连续的序列号 (end - step, end]
+    private static class Segment {
+        private final String date;
+        private final long start;
+        private final long end;
+        private final long step;
+        private final AtomicLong next;
+        private final long createdAt = System.currentTimeMillis();
+
+        private Segment(String date, long end, long step) {
+            this.date = date;
+            this.start = end - step + 1;
+            this.end = end;
+            this.step = step;
+            this.next = new AtomicLong(start);
+        }
+    }
+
+    /**
+     * 某个业务前缀的号段 当前号段用完前异步预取下一段
+     * 正常情况下只有一次原子自增 不访问redis 只有切换号段时才加锁
+     */
+    private class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        //预取中的下一段
+        private CompletableFuture<Segment> prefetch;
+        //下一次预取的步长
+        private long step = minStep;
+
+        private SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        private long next(String date){
+            while (true) {
+                Segment segment = current;
+                //日期变了 序列号要从新的key中取 不能再用前一天的号段
+                if(segment != null && segment.date.equals(date)){
+                    long count = segment.next.getAndIncrement();
+                    if(count <= segment.end){
+                        if(count == segment.start + (long) (segment.step * prefetchRatio)){
+                            prefetchNext(segment);
+                        }
+                        return count;
+                    }
+                }
+                switchSegment(segment, date);
+            }
+        }
+
+        //当前号段用完或者日期变化 换成预取好的号段 没有则同步获取
+        private synchronized void switchSegment(Segment exhausted, String date){
+            if(current != exhausted){
+                //其他线程已经切换过了
+                return;
+            }
+            Segment next = null;
+            //预取时已经按这一段的消耗速度调整过步长
+            boolean prefetched = prefetch != null;
+            if(prefetched){
+                try {
+                    next = prefetch.join();
+                } catch (Exception e) {
+                    log.warn("预取号段失败 改为同步获取, keyPrefix={}", keyPrefix, e);
+                }
+                prefetch = null;
+            }
+            if(next == null || !next.date.equals(date)){
+                if(exhausted != null && !prefetched){
+                    adjustStep(exhausted);
+                }
+                next = fetch(date, step);
+            }
+            current = next;
+        }
+
+        //异步预取下一段 同一时间只有一个预取任务
+        private synchronized void prefetchNext(Segment segment){
+            if(prefetch != null || current != segment){
+                return;
+            }
+            adjustStep(segment);
+            long nextStep = step;
+            String date = segment.date;
+            prefetch = CompletableFuture.supplyAsync(() -> fetch(date, nextStep), prefetchExecutor);
+        }
+
+        //根据当前号段的消耗速度调整步长
+        private void adjustStep(Segment segment){
+            long elapsed = System.currentTimeMillis() - segment.createdAt;
+            if(elapsed < targetMillis / 2){
+                step = Math.min(maxStep, step * 2);
+            }else if(elapsed > targetMillis * 2){
+                step = Math.max(minStep, step / 2);
+            }
+        }
+
+        //INCRBY step 得到这一段的结束值
+        private Segment fetch(String date, long step){
+            Long end = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date, step);
+            if(end == null){
+                throw new IllegalStateException("获取号段失败, keyPrefix=" + keyPrefix);
+            }
+            return new Segment(date, end, step);
+        }
+    }
+
     public static void main(String[] args) {
         LocalDateTime time = LocalDateTime.of(2022,1,1,0,0,0);
         long l = time.toEpochSecond(ZoneOffset.UTC);
@@ -0,0 +1,234 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SHARDED_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_SHARDS_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/**
+ * 分段库存 一张热门秒杀券的库存拆到N个分片上 用户按id哈希固定到一个分片
+ * 每个分片有自己的库存key、已下单用户集合和订单stream 三个key带相同的hash tag
+ * 集群模式下一个分片的扣减、记录用户和发送订单在同一个slot的脚本中原子完成 不同分片分布在不同节点 扣减不再集中在一个节点上
+ * 自己的分片没有库存时去其他分片借一个加到自己的分片再扣减 借库存分两步 中间挂掉只会少卖一个 不会超卖
+ * 一人一单记录在用户所属分片的集合中 同一个用户始终落在同一个分片
+ */
+@Component
+public class ShardedStock {
+
+    public static final int OK = 0;
+    public static final int SOLD_OUT = 1;
+    public static final int DUPLICATE = 2;
+
+    private static final DefaultRedisScript<Long> SHARD_SCRIPT;
+    private static final DefaultRedisScript<Long> STEAL_SCRIPT;
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+    static {
+        SHARD_SCRIPT = new DefaultRedisScript<>();
+        SHARD_SCRIPT.setLocation(new ClassPathResource("seckill_shard.lua"));
+        SHARD_SCRIPT.setResultType(Long.class);
+        STEAL_SCRIPT = new DefaultRedisScript<>();
+        STEAL_SCRIPT.setLocation(new ClassPathResource("seckill_steal.lua"));
+        STEAL_SCRIPT.setResultType(Long.class);
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("seckill_release.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    //voucherId -> 分片数 1表示没有分片 分片数在创建秒杀券时确定 之后不变
+    private final Map<Long, Integer> shardCounts = new ConcurrentHashMap<>();
+
+    /**
+     * 初始化分段库存 库存尽量平均分到每个分片
+     */
+    public void init(Long voucherId, int stock, int shards){
+        List<Integer> split = split(stock, shards);
+        for (int i = 0; i < shards; i++) {
+            stringRedisTemplate.opsForValue().set(stockKey(voucherId, i), split.get(i).toString());
+        }
+        stringRedisTemplate.opsForValue().set(SECKILL_SHARDS_KEY + voucherId, String.valueOf(shards));
+        shardCounts.put(voucherId, shards);
+    }
+
+    /**
+     * 注册分片的秒杀券 订单消费者会为它的每个分片stream启动消费者
+     */
+    public void register(Long voucherId){
+        stringRedisTemplate.opsForSet().add(SECKILL_SHARDED_KEY, voucherId.toString());
+    }
+
+    //秒杀结束并且订单都已经处理完 不再需要分片stream的消费者
+    public void unregister(Long voucherId){
+        stringRedisTemplate.opsForSet().remove(SECKILL_SHARDED_KEY, voucherId.toString());
+    }
+
+    //所有注册过的分片秒杀券
+    public Set<Long> shardedVouchers(){
+        Set<String> members = stringRedisTemplate.opsForSet().members(SECKILL_SHARDED_KEY);
+        if(members == null){
+            return Collections.emptySet();
+        }
+        return members.stream().map(Long::valueOf).collect(Collectors.toSet());
+    }
+
+    //一张秒杀券所有分片的订单stream
+    public List<String> orderStreams(Long voucherId){
+        int shards = shardsOf(voucherId);
+        List<String> streams = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            streams.add(streamKey(voucherId, i));
+        }
+        return streams;
+    }
+
+    //秒杀券的分片数 第一次使用时从redis读取
+    //redis中没有记录时按1处理但不缓存 其他节点提交后才写入的分片数之后仍然能读到
+    public int shardsOf(Long voucherId){
+        Integer cached = shardCounts.get(voucherId);
+        if(cached != null){
+            return cached;
+        }
+        String shards = stringRedisTemplate.opsForValue().get(SECKILL_SHARDS_KEY + voucherId);
+        if(StrUtil.isBlank(shards)){
+            return 1;
+        }
+        int count = Integer.parseInt(shards);
+        shardCounts.put(voucherId, count);
+        return count;
+    }
+
+    public boolean isSharded(Long voucherId){
+        return shardsOf(voucherId) > 1;
+    }
+
+    /**
+     * 扣减库存并记录一人一单 扣减成功时在同一个脚本中把订单发送到用户所属分片的stream
+     * 只有真正扣到库存才记录用户 售罄时没有需要回滚的状态
+     * @return OK 扣减成功 SOLD_OUT 所有分片都没有库存 DUPLICATE 重复下单
+     */
+    public int tryAcquire(Long voucherId, Long userId, long orderId){
+        int shards = shardsOf(voucherId);
+        int home = homeShard(userId, shards);
+        //1. 先在自己的分片扣减
+        int r = acquire(voucherId, home, userId, orderId, 0);
+        if(r != SOLD_OUT || shards == 1){
+            return r;
+        }
+        //2. 自己的分片没有库存 一次MGET看其他分片还有没有 有的话依次尝试借一个
+        List<String> keys = new ArrayList<>(shards - 1);
+        for (int i = 1; i < shards; i++) {
+            keys.add(stockKey(voucherId, (home + i) % shards));
+        }
+        List<String> stocks = stringRedisTemplate.opsForValue().multiGet(keys);
+        for (int i = 0; i < keys.size(); i++) {
+            String stock = stocks == null ? null : stocks.get(i);
+            if(stock == null || Long.parseLong(stock) <= 0){
+                continue;
+            }
+            Long stolen = stringRedisTemplate.execute(STEAL_SCRIPT, Collections.singletonList(keys.get(i)));
+            if(stolen == null || stolen != 1){
+                continue;
+            }
+            //3. 借到的库存加到自己的分片再扣减 重复下单或被同分片的其他请求抢走时库存留在自己的分片
+            r = acquire(voucherId, home, userId, orderId, 1);
+            if(r != SOLD_OUT){
+                return r;
+            }
+        }
+        return SOLD_OUT;
+    }
+
+    //在一个分片上扣减 borrowed为从其他分片借来、先加到这个分片的库存数
+    private int acquire(Long voucherId, int shard, Long userId, long orderId, int borrowed){
+        Long result = stringRedisTemplate.execute(SHARD_SCRIPT,
+                Arrays.asList(stockKey(voucherId, shard), orderKey(voucherId, shard), streamKey(voucherId, shard)),
+                userId.toString(), voucherId.toString(), String.valueOf(orderId), String.valueOf(borrowed));
+        return result == null ? SOLD_OUT : result.intValue();
+    }
+
+    /**
+     * 归还一个库存(订单取消) 还到用户所属的分片 并清除一人一单的记录
+     * 用户已经不在集合中时不再归还 同一个订单重复取消不会多还库存
+     */
+    public void release(Long voucherId, Long userId){
+        int shards = shardsOf(voucherId);
+        int home = homeShard(userId, shards);
+        stringRedisTemplate.execute(RELEASE_SCRIPT,
+                Arrays.asList(stockKey(voucherId, home), orderKey(voucherId, home)), userId.toString());
+    }
+
+    /**
+     * 补充库存 平均分到每个分片
+     */
+    public void add(Long voucherId, int count){
+        int shards = shardsOf(voucherId);
+        List<Integer> split = split(count, shards);
+        for (int i = 0; i < shards; i++) {
+            if(split.get(i) > 0){
+                stringRedisTemplate.opsForValue().increment(stockKey(voucherId, i), split.get(i));
+            }
+        }
+    }
+
+    //所有分片剩余库存之和
+    public long remaining(Long voucherId){
+        int shards = shardsOf(voucherId);
+        List<String> keys = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            keys.add(stockKey(voucherId, i));
+        }
+        List<String> stocks = stringRedisTemplate.opsForValue().multiGet(keys);
+        long sum = 0;
+        for (String stock : stocks == null ? Collections.<String>emptyList() : stocks) {
+            sum += stock == null ? 0 : Long.parseLong(stock);
+        }
+        return sum;
+    }
+
+    //用户id打散后取模 连续的用户id也能均匀分布
+    private static int homeShard(Long userId, int shards){
+        long h = userId * 0x9E3779B97F4A7C15L;
+        return (int) Math.floorMod(h ^ (h >>> 32), (long) shards);
+    }
+
+    //stock平均分成shards份 前 stock % shards 份多1个
+    private static List<Integer> split(int stock, int shards){
+        List<Integer> split = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            split.add(stock / shards + (i < stock % shards ? 1 : 0));
+        }
+        return split;
+    }
+
+    //hash tag保证同一个分片的库存和用户集合在集群中的同一个slot
+    public static String stockKey(Long voucherId, int shard){
+        return SECKILL_STOCK_KEY + "{" + voucherId + "-" + shard + "}";
+    }
+
+    public static String orderKey(Long voucherId, int shard){
+        return SECKILL_ORDER_KEY + "{" + voucherId + "-" + shard + "}";
+    }
+
+    public static String streamKey(Long voucherId, int shard){
+        return SECKILL_ORDER_STREAM + ":{" + voucherId + "-" + shard + "}";
+    }
+}
@@ -0,0 +1,250 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SNOWFLAKE_LAST_KEY;
+import static com.hmdp.utils.RedisConstants.SNOWFLAKE_WORKER_KEY;
+
+/**
+ * 雪花算法id 不要求连续递增的场景使用(上传文件名等) 生成时不访问redis
+ * 1位符号 + 41位毫秒时间戳(与RedisIdWorker相同的起始时间) + 10位机器id + 12位序列号
+ * 机器id从redis租用 定时续期 节点挂掉后租约过期由其他节点复用 保证存活的节点不会重复
+ * 租约丢失后旧的机器id可能已经被其他节点使用 重新租用期间生成id的线程等待新的机器id
+ * 续期在单独的线程中执行 不受其他定时任务影响 距离上次续期成功太久(租约快过期)时同样等待 不会在租约过期后继续使用机器id
+ */
+@Slf4j
+@Component
+public class SnowflakeIdWorker {
+
+    private static final long BEGIN_MILLIS = RedisIdWorker.BEGIN_TIMESTAMP * 1000;
+    private static final int WORKER_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final long MAX_WORKER = (1L << WORKER_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+    static {
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("renew_lease.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    //租约中保存的持有者标示
+    private final String owner = UUID.randomUUID().toString(true);
+    private final long leaseMillis;
+    //时钟回拨不超过这个时间时等待追上 超过则沿用上一次的时间戳继续分配
+    private final long maxBackwardMillis;
+    //重新租用机器id期间 生成id最多等待的时间
+    private final long leaseWaitMillis;
+    private final long heartbeatMillis;
+    //续期线程
+    private ScheduledExecutorService heartbeatExecutor;
+    private final Object heartbeatLock = new Object();
+
+    //-1表示没有租到机器id
+    private volatile long workerId = -1;
+    //最近一次租用或续期成功的时间(发送命令之前的nanoTime) 超过租约的2/3还没有续期成功就不再生成id
+    private long renewedAt;
+    private long lastTimestamp = -1;
+    private long sequence = 0;
+
+    public SnowflakeIdWorker(StringRedisTemplate stringRedisTemplate,
+                             @Value("${hmdp.id.snowflake.lease-ttl:30s}") Duration leaseTtl,
+                             @Value("${hmdp.id.snowflake.max-backward:5ms}") Duration maxBackward,
+                             @Value("${hmdp.id.snowflake.lease-wait:2s}") Duration leaseWait,
+                             @Value("${hmdp.id.snowflake.heartbeat-millis:10000}") long heartbeatMillis) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.leaseMillis = leaseTtl.toMillis();
+        this.maxBackwardMillis = maxBackward.toMillis();
+        this.leaseWaitMillis = leaseWait.toMillis();
+        this.heartbeatMillis = heartbeatMillis;
+    }
+
+    @PostConstruct
+    public void init(){
+        lease();
+        heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "snowflake-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeatExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                heartbeat();
+            } catch (Exception e) {
+                log.error("雪花算法机器id续期异常", e);
+            }
+        }, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized long nextId(){
+        awaitWorkerId();
+        long timestamp = System.currentTimeMillis();
+        if(timestamp < lastTimestamp){
+            long backward = lastTimestamp - timestamp;
+            if(backward <= maxBackwardMillis){
+                //1. 小幅回拨 等待时钟追上
+                sleepQuietly(backward);
+                timestamp = System.currentTimeMillis();
+            }
+            if(timestamp < lastTimestamp){
+                //2. 大幅回拨 沿用上一次的时间戳 序列号用完后逻辑时间向前推进
+                log.warn("时钟回拨{}ms 沿用上一次的时间戳", lastTimestamp - timestamp);
+                timestamp = lastTimestamp;
+            }
+        }
+        if(timestamp == lastTimestamp){
+            sequence = (sequence + 1) & SEQUENCE_MASK;
+            if(sequence == 0){
+                //同一毫秒内序列号用完 等到下一毫秒 时钟落后时直接把逻辑时间推进1毫秒
+                timestamp = System.currentTimeMillis() >= lastTimestamp
+                        ? waitNextMillis(lastTimestamp) : lastTimestamp + 1;
+            }
+        }else {
+            sequence = 0;
+        }
+        lastTimestamp = timestamp;
+        return (timestamp - BEGIN_MILLIS) << (WORKER_BITS + SEQUENCE_BITS)
+                | workerId << SEQUENCE_BITS
+                | sequence;
+    }
+
+    public long getWorkerId(){
+        return workerId;
+    }
+
+    //没有机器id或者租约快过期时等待租用/续期完成 wait会释放锁 不影响lease()和heartbeat()写入
+    private void awaitWorkerId(){
+        long deadline = System.currentTimeMillis() + leaseWaitMillis;
+        while (workerId < 0 || !leaseValid()){
+            long remaining = deadline - System.currentTimeMillis();
+            if(remaining <= 0){
+                throw new IllegalStateException("没有可用的机器id");
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("等待机器id时被中断", e);
+            }
+        }
+    }
+
+    //租约剩余时间还有1/3以上
+    private boolean leaseValid(){
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - renewedAt) < leaseMillis * 2 / 3;
+    }
+
+    //从随机位置开始依次尝试租用机器id 访问redis时不持有锁 租到之后唤醒等待的线程
+    private void lease(){
+        int start = ThreadLocalRandom.current().nextInt((int) MAX_WORKER + 1);
+        for (int i = 0; i <= MAX_WORKER; i++) {
+            long id = (start + i) & MAX_WORKER;
+            long sentAt = System.nanoTime();
+            Boolean ok = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(SNOWFLAKE_WORKER_KEY + id, owner, leaseMillis, TimeUnit.MILLISECONDS);
+            if(BooleanUtil.isTrue(ok)){
+                //上一个使用这个机器id的节点生成过的最大时间戳 新的id必须比它大
+                String last = stringRedisTemplate.opsForValue().get(SNOWFLAKE_LAST_KEY + id);
+                synchronized (this){
+                    if(StrUtil.isNotBlank(last)){
+                        lastTimestamp = Math.max(lastTimestamp, Long.parseLong(last));
+                    }
+                    workerId = id;
+                    renewedAt = sentAt;
+                    notifyAll();
+                }
+                log.info("租用雪花算法机器id: {}", id);
+                return;
+            }
+        }
+        throw new IllegalStateException("机器id已全部被占用");
+    }
+
+    //定时续期 同时记录当前的时间戳 续期失败说明租约已经丢失 重新租用
+    //手动调用和续期线程同时执行时串行 不会同时租用两个机器id
+    public void heartbeat(){
+        synchronized (heartbeatLock){
+            renew();
+        }
+    }
+
+    private void renew(){
+        long id = workerId;
+        if(id < 0){
+            lease();
+            return;
+        }
+        long sentAt = System.nanoTime();
+        Long renewed = stringRedisTemplate.execute(RENEW_SCRIPT,
+                Collections.singletonList(SNOWFLAKE_WORKER_KEY + id), owner, String.valueOf(leaseMillis));
+        if(renewed == null || renewed == 0){
+            log.warn("雪花算法机器id租约丢失: {} 重新租用", id);
+            synchronized (this){
+                workerId = -1;
+            }
+            lease();
+            return;
+        }
+        long last;
+        synchronized (this){
+            renewedAt = sentAt;
+            notifyAll();
+            last = Math.max(lastTimestamp, System.currentTimeMillis());
+        }
+        stringRedisTemplate.opsForValue().set(SNOWFLAKE_LAST_KEY + id, String.valueOf(last));
+    }
+
+    @PreDestroy
+    public void release(){
+        heartbeatExecutor.shutdownNow();
+        long id = workerId;
+        if(id < 0){
+            return;
+        }
+        synchronized (this){
+            stringRedisTemplate.opsForValue().set(SNOWFLAKE_LAST_KEY + id, String.valueOf(lastTimestamp));
+            workerId = -1;
+        }
+        stringRedisTemplate.execute(RELEASE_SCRIPT, Collections.singletonList(SNOWFLAKE_WORKER_KEY + id), owner);
+    }
+
+    private static long waitNextMillis(long lastTimestamp){
+        long timestamp = System.currentTimeMillis();
+        while (timestamp <= lastTimestamp){
+            Thread.yield();
+            timestamp = System.currentTimeMillis();
+        }
+        return timestamp;
+    }
+
+    private static void sleepQuietly(long millis){
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
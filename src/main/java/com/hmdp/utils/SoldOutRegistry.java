@@ -0,0 +1,95 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * 本节点的售罄标记 秒杀券第一次库存不足时标记并广播给所有节点
+ * 标记期间的请求直接在内存中拒绝 不再访问redis和数据库 补充库存时广播清除
+ * 标记有存活时间 过期后放行一次请求重新确认 避免错过清除消息后一直拒绝
+ */
+@Slf4j
+@Component
+public class SoldOutRegistry {
+
+    private static final String SOLD_OUT = "SOLD_OUT";
+    private static final String RESET = "RESET";
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    //voucherId -> 标记的过期时间
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+    private final long ttlMillis;
+
+    //在内存中直接拒绝的请求数
+    private final Counter shortCircuitCounter;
+
+    public SoldOutRegistry(StringRedisTemplate stringRedisTemplate,
+                           MeterRegistry registry,
+                           RedisMessageListenerContainer listenerContainer,
+                           @Value("${hmdp.seckill.sold-out-ttl:10s}") Duration ttl) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.ttlMillis = ttl.toMillis();
+        this.shortCircuitCounter = registry.counter("seckill.soldout.short-circuit");
+        Gauge.builder("seckill.soldout.vouchers", soldOut, Map::size).register(registry);
+        //订阅其他节点的售罄和补货消息 格式: 动作 voucherId
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String[] parts = new String(message.getBody(), StandardCharsets.UTF_8).split(" ");
+            Long voucherId = Long.valueOf(parts[1]);
+            if(SOLD_OUT.equals(parts[0])){
+                soldOut.put(voucherId, System.currentTimeMillis() + ttlMillis);
+            }else {
+                soldOut.remove(voucherId);
+            }
+        }, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    /**
+     * 判断是否已售罄 是则计入短路拒绝次数
+     */
+    public boolean isSoldOut(Long voucherId){
+        Long expireAt = soldOut.get(voucherId);
+        if(expireAt == null){
+            return false;
+        }
+        if(expireAt < System.currentTimeMillis()){
+            //标记过期 放行去redis确认 仍然售罄会重新标记
+            soldOut.remove(voucherId, expireAt);
+            return false;
+        }
+        shortCircuitCounter.increment();
+        return true;
+    }
+
+    //库存不足时标记 已经标记过的不再重复广播
+    public void markSoldOut(Long voucherId){
+        if(soldOut.put(voucherId, System.currentTimeMillis() + ttlMillis) == null){
+            log.debug("秒杀券已售罄, voucherId={}", voucherId);
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, SOLD_OUT + " " + voucherId);
+        }
+    }
+
+    //补充库存后清除所有节点的标记
+    public void reset(Long voucherId){
+        soldOut.remove(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, RESET + " " + voucherId);
+    }
+
+    public long getShortCircuitCount(){
+        return (long) shortCircuitCounter.count();
+    }
+}
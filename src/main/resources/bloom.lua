@@ -0,0 +1,11 @@
+-- 布隆过滤器还没有构建 不能拦截 全部放行
+if(redis.call('exists', KEYS[1]) == 0) then
+    return 1
+end
+-- 任意一个bit为0 说明一定不存在
+for i = 1, #ARGV do
+    if(redis.call('getbit', KEYS[1], ARGV[i]) == 0) then
+        return 0
+    end
+end
+return 1
@@ -0,0 +1,15 @@
+-- KEYS[1]: 布隆过滤器 KEYS[2]: 正在重建的临时key的名字 ARGV: 要置为1的bit位置
+-- 过滤器还没有构建时不写入 否则只有少数bit的过滤器会把其他id都当成不存在
+if(redis.call('exists', KEYS[1]) == 1) then
+    for i = 1, #ARGV do
+        redis.call('setbit', KEYS[1], ARGV[i], 1)
+    end
+end
+-- 正在重建 同时写入临时key 否则rename之后这个id会丢失
+local tmpKey = redis.call('get', KEYS[2])
+if(tmpKey) then
+    for i = 1, #ARGV do
+        redis.call('setbit', tmpKey, ARGV[i], 1)
+    end
+end
+return 1
@@ -0,0 +1,17 @@
+-- KEYS[1]: 缓存key KEYS[2]: 版本号key
+-- ARGV[1]: 数据的版本号 空字符串表示不检查版本 ARGV[2]: 过期时间(毫秒) ARGV[3]: 版本号至少保留的时间(毫秒)
+-- ARGV[4..]: field value交替
+if(ARGV[1] ~= '') then
+    local current = redis.call('get', KEYS[2])
+    if(current and tonumber(current) > tonumber(ARGV[1])) then
+        return 0
+    end
+    -- 版本号的保留时间只延长不缩短
+    local ttl = math.max(tonumber(ARGV[3]), redis.call('pttl', KEYS[2]))
+    redis.call('set', KEYS[2], ARGV[1], 'PX', ttl)
+end
+-- 先删除 避免残留上一份数据中已经为空的字段
+redis.call('del', KEYS[1])
+redis.call('hset', KEYS[1], unpack(ARGV, 4))
+redis.call('pexpire', KEYS[1], ARGV[2])
+return 1
@@ -0,0 +1,9 @@
+-- KEYS[1]: 缓存key KEYS[2]: 版本号key
+-- ARGV[1]: 更新后的版本号 ARGV[2]: 版本号保留时间(毫秒)
+-- 记录最新版本号 之后比它旧的数据都不能再写入缓存 保留时间只延长不缩短
+local current = redis.call('get', KEYS[2])
+if(not current or tonumber(current) < tonumber(ARGV[1])) then
+    local ttl = math.max(tonumber(ARGV[2]), redis.call('pttl', KEYS[2]))
+    redis.call('set', KEYS[2], ARGV[1], 'PX', ttl)
+end
+return redis.call('del', KEYS[1])
@@ -0,0 +1,17 @@
+-- KEYS[1]: 缓存key KEYS[2]: 版本号key
+-- ARGV[1]: 数据的版本号 ARGV[2]: 缓存值 ARGV[3]: 过期时间(毫秒) 0表示不过期(逻辑过期数据)
+-- ARGV[4]: 版本号至少保留的时间(毫秒)
+-- 已有更新版本的数据(或者更新版本的失效记录) 说明这份数据是旧的 不写入
+local current = redis.call('get', KEYS[2])
+if(current and tonumber(current) > tonumber(ARGV[1])) then
+    return 0
+end
+if(tonumber(ARGV[3]) > 0) then
+    redis.call('set', KEYS[1], ARGV[2], 'PX', ARGV[3])
+else
+    redis.call('set', KEYS[1], ARGV[2])
+end
+-- 版本号的保留时间只延长不缩短 失效记录要保留足够久
+local ttl = math.max(tonumber(ARGV[4]), redis.call('pttl', KEYS[2]))
+redis.call('set', KEYS[2], ARGV[1], 'PX', ttl)
+return 1
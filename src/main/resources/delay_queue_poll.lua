@@ -0,0 +1,9 @@
+-- KEYS[1]: 延迟队列zset score为到期时间
+-- ARGV[1]: 当前时间 ARGV[2]: 最多取出的数量 ARGV[3]: 取出后的重试时间
+-- 取出已到期的元素 并把它们的score改成重试时间 处理成功后由调用方删除
+-- 处理节点挂掉时元素在重试时间之后会被再次取出
+local items = redis.call('zrangebyscore', KEYS[1], '-inf', ARGV[1], 'LIMIT', 0, tonumber(ARGV[2]))
+for i = 1, #items do
+    redis.call('zadd', KEYS[1], ARGV[3], items[i])
+end
+return items
@@ -0,0 +1,27 @@
+-- 令牌桶 KEYS[1]: 桶的key hash中保存剩余令牌数tokens和上次补充时间ts
+-- ARGV[1]: 桶容量 ARGV[2]: 每秒补充的令牌数 ARGV[3]: 当前时间(毫秒) ARGV[4]: 请求的令牌数
+-- 令牌不足时按剩余数量发放 返回{发放的令牌数, 剩余令牌数}
+local capacity = tonumber(ARGV[1])
+local rate = tonumber(ARGV[2])
+local now = tonumber(ARGV[3])
+local requested = tonumber(ARGV[4])
+
+local bucket = redis.call('hmget', KEYS[1], 'tokens', 'ts')
+local tokens = tonumber(bucket[1])
+local ts = tonumber(bucket[2])
+if(tokens == nil or ts == nil) then
+    tokens = capacity
+    ts = now
+end
+-- 按经过的时间补充令牌 各节点时钟不一致时时间不会倒退
+if(now > ts) then
+    tokens = math.min(capacity, tokens + (now - ts) * rate / 1000)
+    ts = now
+end
+
+local granted = math.min(math.floor(tokens), requested)
+tokens = tokens - granted
+redis.call('hset', KEYS[1], 'tokens', tostring(tokens), 'ts', tostring(ts))
+-- 桶补满所需时间之后没有访问 删除也不影响结果
+redis.call('pexpire', KEYS[1], math.ceil(capacity / rate * 1000) + 1000)
+return {granted, math.floor(tokens)}
@@ -0,0 +1,5 @@
+-- 比较租约中的持有者标示 一致才续期
+if(redis.call('get', KEYS[1]) == ARGV[1]) then
+    return redis.call('pexpire', KEYS[1], ARGV[2])
+end
+return 0
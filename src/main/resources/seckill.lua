@@ -0,0 +1,21 @@
+-- KEYS[1]: 库存key seckill:stock:{voucherId} KEYS[2]: 已下单用户集合 seckill:order:{voucherId} KEYS[3]: 订单消息队列
+-- ARGV[1]: 用户id ARGV[2]: 优惠券id ARGV[3]: 订单id
+-- 返回 0:下单成功 1:库存不足 2:重复下单 3:秒杀券库存未加载
+local stock = tonumber(redis.call('get', KEYS[1]))
+if(stock == nil) then
+    return 3
+end
+-- 判断库存是否充足
+if(stock <= 0) then
+    return 1
+end
+-- 判断用户是否下过单
+if(redis.call('sismember', KEYS[2], ARGV[1]) == 1) then
+    return 2
+end
+-- 扣库存 记录下单用户
+redis.call('incrby', KEYS[1], -1)
+redis.call('sadd', KEYS[2], ARGV[1])
+-- 发送订单消息 XADD stream.orders * k1 v1 k2 v2 ...
+redis.call('xadd', KEYS[3], '*', 'userId', ARGV[1], 'voucherId', ARGV[2], 'id', ARGV[3])
+return 0
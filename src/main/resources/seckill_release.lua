@@ -0,0 +1,8 @@
+-- KEYS[1]: 库存key KEYS[2]: 已下单用户集合 ARGV[1]: 用户id
+-- 订单取消时归还库存 只有用户还在集合中时才加回库存 重复执行不会多还
+-- 返回 1:已归还 0:之前已经归还过
+if(redis.call('srem', KEYS[2], ARGV[1]) == 1) then
+    redis.call('incrby', KEYS[1], 1)
+    return 1
+end
+return 0
@@ -0,0 +1,19 @@
+-- KEYS[1]: 用户所属分片的库存key KEYS[2]: 该分片的已下单用户集合 KEYS[3]: 该分片的订单消息队列
+-- 三个key带相同的hash tag 集群模式下在同一个slot
+-- ARGV[1]: 用户id ARGV[2]: 优惠券id ARGV[3]: 订单id ARGV[4]: 从其他分片借来的库存数 先加到本分片再扣减
+-- 返回 0:扣减成功 已记录用户并发送订单消息 1:本分片没有库存 2:重复下单
+if(tonumber(ARGV[4]) > 0) then
+    redis.call('incrby', KEYS[1], ARGV[4])
+end
+if(redis.call('sismember', KEYS[2], ARGV[1]) == 1) then
+    return 2
+end
+local stock = tonumber(redis.call('get', KEYS[1]))
+if(stock == nil or stock <= 0) then
+    return 1
+end
+-- 真正扣到库存才记录用户 没有库存时不需要回滚
+redis.call('incrby', KEYS[1], -1)
+redis.call('sadd', KEYS[2], ARGV[1])
+redis.call('xadd', KEYS[3], '*', 'userId', ARGV[1], 'voucherId', ARGV[2], 'id', ARGV[3])
+return 0
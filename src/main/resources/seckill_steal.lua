@@ -0,0 +1,8 @@
+-- KEYS[1]: 其他分片的库存key
+-- 有库存则减1 返回1 借到的库存由调用方加到用户所属的分片 否则返回0
+local stock = tonumber(redis.call('get', KEYS[1]))
+if(stock ~= nil and stock > 0) then
+    redis.call('incrby', KEYS[1], -1)
+    return 1
+end
+return 0
@@ -1,25 +1,82 @@
 package com.hmdp;
 
+import cn.hutool.core.thread.ThreadUtil;
+import com.hmdp.config.RateLimitProperties;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Blog;
 import com.hmdp.entity.Shop;
+import com.hmdp.entity.UserInfo;
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherService;
 import com.hmdp.service.impl.ShopServiceImpl;
+import com.hmdp.service.impl.VoucherOrderServiceImpl;
+import com.hmdp.utils.BinaryCacheCodec;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.JsonCacheCodec;
+import com.hmdp.utils.RateLimitInterceptor;
+import com.hmdp.utils.RateLimiter;
+import com.hmdp.utils.RedisDelayQueue;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.ShardedStock;
+import com.hmdp.utils.SnowflakeIdWorker;
+import com.hmdp.utils.SoldOutRegistry;
+import com.hmdp.utils.UserHolder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
 import org.springframework.data.geo.Point;
 import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
 
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
 import java.util.stream.Collector;
 import java.util.stream.Collectors;
 
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_VERSION_SUFFIX;
+import static com.hmdp.utils.RedisConstants.ORDER_TIMEOUT_QUEUE;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_GROUP;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM;
+import static com.hmdp.utils.RedisConstants.SECKILL_SHARDS_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_KEY;
 import static com.hmdp.utils.RedisConstants.SHOP_GEO_KEY;
+import static com.hmdp.utils.RedisConstants.SNOWFLAKE_WORKER_KEY;
 
-@SpringBootTest
+//认领空闲的pending订单消息的时间改短 测试中不用等默认的60s
+@SpringBootTest(properties = "hmdp.seckill.stream.reclaim-min-idle=1s")
 class HmDianPingApplicationTests {
 
     @Resource
@@ -62,6 +119,585 @@ class HmDianPingApplicationTests {
         System.out.println("time="+ (end-begin));
     }
 
+    @Resource
+    private SnowflakeIdWorker snowflakeIdWorker;
+
+    /**
+     * 与testIdWorker相同的压测方式 对比雪花算法和RedisIdWorker 并检查多线程生成的id没有重复
+     * 最后在生成id的同时让租约丢失 重新租用期间生成id的线程等待新的机器id 不会失败也不会重复
+     */
+    @Test
+    void testSnowflakeIdWorker() throws InterruptedException {
+        long redis = idThroughput(() -> redisIdWorker.nextId("order"), () -> {});
+        long snowflake = idThroughput(snowflakeIdWorker::nextId, () -> {});
+        System.out.println("redis time=" + redis + ", snowflake time=" + snowflake);
+        idThroughput(snowflakeIdWorker::nextId, () -> {
+            stringRedisTemplate.delete(SNOWFLAKE_WORKER_KEY + snowflakeIdWorker.getWorkerId());
+            snowflakeIdWorker.heartbeat();
+        });
+        Assertions.assertTrue(snowflakeIdWorker.getWorkerId() >= 0);
+    }
+
+    /**
+     * 号段模式 新的业务前缀从最小步长开始 30000个id会经过多次号段切换和预取
+     * 生成的同时模拟另一个节点直接INCRBY占用号段 所有id不重复 序列号不会落在另一个节点的号段中 也不会超过redis中已分配的值
+     */
+    @Test
+    void testSegmentIdWorker() throws InterruptedException {
+        String keyPrefix = "test:segment";
+        String key = "icr:" + keyPrefix + ":" + LocalDate.now().format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        List<long[]> otherNode = new ArrayList<>();
+        try {
+            idThroughput(() -> {
+                long id = redisIdWorker.nextId(keyPrefix);
+                ids.add(id);
+                return id;
+            }, () -> {
+                for (int i = 0; i < 20; i++) {
+                    long end = stringRedisTemplate.opsForValue().increment(key, 50);
+                    otherNode.add(new long[]{end - 49, end});
+                    ThreadUtil.sleep(5);
+                }
+            });
+            long allocated = Long.parseLong(stringRedisTemplate.opsForValue().get(key));
+            for (long id : ids) {
+                long count = id & 0xFFFFFFFFL;
+                Assertions.assertTrue(count >= 1 && count <= allocated);
+                Assertions.assertTrue(otherNode.stream().noneMatch(range -> count >= range[0] && count <= range[1]));
+            }
+        } finally {
+            stringRedisTemplate.delete(key);
+        }
+    }
+
+    //300个线程各生成100个id 提交任务后在当前线程执行during 有id重复或生成失败时断言失败
+    private long idThroughput(LongSupplier idSupplier, Runnable during) throws InterruptedException {
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        AtomicInteger generated = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(300);
+        Runnable task = () -> {
+            try {
+                for (int i = 0; i < 100; i++) {
+                    ids.add(idSupplier.getAsLong());
+                    generated.incrementAndGet();
+                }
+            } finally {
+                latch.countDown();
+            }
+        };
+        long begin = System.currentTimeMillis();
+        for (int i = 0; i < 300; i++) {
+            es.submit(task);
+        }
+        during.run();
+        latch.await();
+        long time = System.currentTimeMillis() - begin;
+        Assertions.assertEquals(30000, generated.get());
+        Assertions.assertEquals(30000, ids.size());
+        return time;
+    }
+
+    @Resource
+    private ShardedStock shardedStock;
+
+    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    static {
+        SECKILL_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
+        SECKILL_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * seckill.lua单个库存key和8个分片的分段库存对比
+     * 库存10000 15000个用户每人连续抢两次 两种方式都要满足: 卖出+剩余=初始库存 每个用户最多抢到一次 每个卖出的库存都有一条订单消息
+     * 订单消息写到测试用的stream(分段库存的券没有注册 不会启动消费者) 测试结束后删除用到的key
+     */
+    @Test
+    void testShardedStock() throws InterruptedException {
+        Long single = -1L;
+        Long sharded = -2L;
+        String singleStream = "test:stream.orders:" + single;
+        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + single, "10000");
+        shardedStock.init(sharded, 10000, 8);
+        try {
+            long singleTime = seckillRun((userId, orderId) -> stringRedisTemplate.execute(SECKILL_SCRIPT,
+                            Arrays.asList(SECKILL_STOCK_KEY + single, SECKILL_ORDER_KEY + single, singleStream),
+                            userId.toString(), single.toString(), orderId.toString()).intValue(),
+                    () -> Long.parseLong(stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + single)),
+                    Collections.singletonList(singleStream));
+            long shardedTime = seckillRun((userId, orderId) -> shardedStock.tryAcquire(sharded, userId, orderId),
+                    () -> shardedStock.remaining(sharded), shardedStock.orderStreams(sharded));
+            System.out.println("seckill.lua time=" + singleTime + ", 8 shards time=" + shardedTime);
+        } finally {
+            List<String> keys = new ArrayList<>(Arrays.asList(
+                    SECKILL_STOCK_KEY + single, SECKILL_ORDER_KEY + single, singleStream, SECKILL_SHARDS_KEY + sharded));
+            for (int i = 0; i < 8; i++) {
+                keys.add(ShardedStock.stockKey(sharded, i));
+                keys.add(ShardedStock.orderKey(sharded, i));
+                keys.add(ShardedStock.streamKey(sharded, i));
+            }
+            stringRedisTemplate.delete(keys);
+        }
+    }
+
+    //150个线程 每个线程100个用户 每个用户连续抢两次 acquire返回0表示抢到
+    private long seckillRun(BiFunction<Long, Long, Integer> acquire, LongSupplier remaining, List<String> streams)
+            throws InterruptedException {
+        Map<Long, AtomicInteger> acquiredByUser = new ConcurrentHashMap<>();
+        AtomicInteger sold = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(150);
+        long begin = System.currentTimeMillis();
+        for (int t = 0; t < 150; t++) {
+            long base = t * 100L;
+            es.submit(() -> {
+                try {
+                    for (long u = base; u < base + 100; u++) {
+                        for (long attempt = 0; attempt < 2; attempt++) {
+                            if(acquire.apply(u, u * 2 + attempt) == 0){
+                                sold.incrementAndGet();
+                                acquiredByUser.computeIfAbsent(u, k -> new AtomicInteger()).incrementAndGet();
+                            }
+                        }
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        long time = System.currentTimeMillis() - begin;
+        //1. 库存守恒 不超卖
+        Assertions.assertTrue(sold.get() > 0);
+        Assertions.assertEquals(10000, sold.get() + remaining.getAsLong());
+        //2. 一人一单
+        Assertions.assertTrue(acquiredByUser.values().stream().allMatch(count -> count.get() == 1));
+        //3. 订单消息和卖出的数量一致 消息中的用户不重复
+        Set<String> users = new HashSet<>();
+        int messages = 0;
+        for (String stream : streams) {
+            List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(stream, Range.unbounded());
+            messages += records.size();
+            records.forEach(record -> users.add((String) record.getValue().get("userId")));
+        }
+        Assertions.assertEquals(sold.get(), messages);
+        Assertions.assertEquals(sold.get(), users.size());
+        return time;
+    }
+
+    /**
+     * 缓存实体用到的字段类型(Long Integer Double Boolean String LocalDate LocalDateTime)都能编码后原样解出来 切换编码方式后旧数据解码失败(由CacheClient当作未命中)
+     */
+    @Test
+    void testCacheCodec() {
+        Shop shop = new Shop().setId(1L).setName("茶餐厅").setTypeId(1L).setX(120.149192).setY(30.316078)
+                .setAvgPrice(80L).setScore(37).setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39, 123000000));
+        Blog blog = new Blog().setId(2L).setUserId(3L).setTitle("标题").setLiked(5).setIsLike(true)
+                .setUpdateTime(LocalDateTime.of(2022, 1, 1, 0, 0, 0));
+        UserInfo userInfo = new UserInfo().setUserId(4L).setCity("杭州").setFans(10).setGender(false)
+                .setBirthday(LocalDate.of(2000, 1, 2)).setCredits(100).setLevel(true);
+        CacheCodec[] codecs = {new BinaryCacheCodec(16), new BinaryCacheCodec(0), new JsonCacheCodec()};
+        for (CacheCodec codec : codecs) {
+            Assertions.assertEquals(shop, codec.decode(codec.encode(shop), Shop.class));
+            Assertions.assertEquals(blog, codec.decode(codec.encode(blog), Blog.class));
+            Assertions.assertEquals(userInfo, codec.decode(codec.encode(userInfo), UserInfo.class));
+        }
+        byte[] binary = new BinaryCacheCodec(0).encode(shop);
+        byte[] json = new JsonCacheCodec().encode(shop);
+        Assertions.assertThrows(RuntimeException.class, () -> new JsonCacheCodec().decode(binary, Shop.class));
+        Assertions.assertThrows(RuntimeException.class, () -> new BinaryCacheCodec(0).decode(json, Shop.class));
+    }
+
+    @Resource
+    private CacheClient cacheClient;
+
+    /**
+     * 50个线程同时查询同一个不在缓存中的key 开启请求合并时只查一次数据库 所有线程拿到同一个结果
+     * 数据库中不存在的id同样只查一次
+     */
+    @Test
+    void testSingleFlight() throws InterruptedException {
+        String keyPrefix = "test:single-flight:";
+        AtomicInteger loads = new AtomicInteger();
+        Function<Long, Shop> dbFallback = id -> {
+            loads.incrementAndGet();
+            ThreadUtil.sleep(200);
+            return id > 0 ? new Shop().setId(id).setName("茶餐厅") : null;
+        };
+        long coalesced = cacheClient.getCoalescedCount();
+        try {
+            List<Shop> found = concurrentQuery(50, () -> cacheClient.queryWithPassThrough(
+                    keyPrefix, 1L, Shop.class, dbFallback, 10L, TimeUnit.MINUTES, true));
+            Assertions.assertEquals(1, loads.get());
+            Assertions.assertEquals(50, found.size());
+            Assertions.assertTrue(found.stream().allMatch(shop -> shop != null && shop.getId() == 1L));
+            Assertions.assertTrue(cacheClient.getCoalescedCount() > coalesced);
+
+            loads.set(0);
+            List<Shop> missing = concurrentQuery(50, () -> cacheClient.queryWithPassThrough(
+                    keyPrefix, -1L, Shop.class, dbFallback, 10L, TimeUnit.MINUTES, true));
+            Assertions.assertEquals(1, loads.get());
+            Assertions.assertEquals(50, missing.size());
+            Assertions.assertTrue(missing.stream().allMatch(Objects::isNull));
+        } finally {
+            cacheClient.delete(keyPrefix + 1);
+            cacheClient.delete(keyPrefix + -1);
+        }
+    }
+
+    //threads个线程同时开始执行query 返回所有结果 执行失败的线程没有结果
+    private <R> List<R> concurrentQuery(int threads, Supplier<R> query) throws InterruptedException {
+        List<R> results = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            es.submit(() -> {
+                try {
+                    start.await();
+                    results.add(query.get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        start.countDown();
+        done.await();
+        return results;
+    }
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    /**
+     * 概率提前刷新 查库耗时200ms 过期时间4s
+     * 刚写入时离过期还远 读取不会触发刷新 之后一直读到超过原来的过期时间 过期前已被某次读取提前重建 只有第一次读取未命中
+     */
+    @Test
+    void testEarlyRefresh() {
+        String keyPrefix = "test:early-refresh:";
+        AtomicInteger loads = new AtomicInteger();
+        Function<Long, Shop> dbFallback = id -> {
+            loads.incrementAndGet();
+            ThreadUtil.sleep(200);
+            return new Shop().setId(id).setName("茶餐厅");
+        };
+        Counter misses = meterRegistry.counter("cache.gets", "prefix", keyPrefix, "result", "miss");
+        double missesBefore = misses.count();
+        try {
+            //1. 第一次读取未命中 查库写入
+            Assertions.assertNotNull(cacheClient.queryWithEarlyRefresh(keyPrefix, 1L, Shop.class, dbFallback, 4L, TimeUnit.SECONDS));
+            Assertions.assertEquals(1, loads.get());
+            //2. 离过期还远 不会被选中刷新
+            for (int i = 0; i < 100; i++) {
+                cacheClient.queryWithEarlyRefresh(keyPrefix, 1L, Shop.class, dbFallback, 4L, TimeUnit.SECONDS);
+            }
+            Assertions.assertEquals(1, loads.get());
+            //3. 持续读取5s 超过第一次写入的过期时间
+            long end = System.currentTimeMillis() + 5000;
+            while (System.currentTimeMillis() < end) {
+                Assertions.assertNotNull(cacheClient.queryWithEarlyRefresh(keyPrefix, 1L, Shop.class, dbFallback, 4L, TimeUnit.SECONDS));
+                ThreadUtil.sleep(10);
+            }
+            Assertions.assertTrue(loads.get() > 1);
+            Assertions.assertEquals(missesBefore + 1, misses.count());
+        } finally {
+            cacheClient.delete(keyPrefix + 1);
+        }
+    }
+
+    @Resource
+    private CacheCodec cacheCodec;
+
+    /**
+     * 店铺缓存带版本号写入 redis中已有更新的版本或者更新版本的失效记录时 旧版本不能写回缓存
+     * 使用不存在的店铺id -1 测试结束后删除缓存和版本号
+     */
+    @Test
+    void testVersionedWrite() {
+        String key = CACHE_SHOP_KEY + -1;
+        Shop v1 = new Shop().setId(-1L).setName("v1").setVersion(1L);
+        Shop v2 = new Shop().setId(-1L).setName("v2").setVersion(2L);
+        Shop v3 = new Shop().setId(-1L).setName("v3").setVersion(3L);
+        try {
+            //1. 已有v2时写入v1 不生效
+            cacheClient.set(key, v2, 10L, TimeUnit.MINUTES);
+            cacheClient.set(key, v1, 10L, TimeUnit.MINUTES);
+            Assertions.assertEquals("v2", cachedShop(key).getName());
+            //2. 数据库更新到v3后删除缓存 之前读到v2的线程不能再写回
+            cacheClient.deleteAfterCommit(key, 3L);
+            Assertions.assertNull(cachedShop(key));
+            cacheClient.set(key, v2, 10L, TimeUnit.MINUTES);
+            Assertions.assertNull(cachedShop(key));
+            //3. v3可以写入
+            cacheClient.set(key, v3, 10L, TimeUnit.MINUTES);
+            Assertions.assertEquals("v3", cachedShop(key).getName());
+        } finally {
+            stringRedisTemplate.delete(Arrays.asList(key, key + CACHE_VERSION_SUFFIX));
+        }
+    }
+
+    //直接读redis中的缓存值 不经过本地缓存
+    private Shop cachedShop(String key){
+        byte[] bytes = stringRedisTemplate.execute((RedisCallback<byte[]>) c -> c.get(key.getBytes(StandardCharsets.UTF_8)));
+        return bytes == null ? null : cacheCodec.decode(bytes, Shop.class);
+    }
+
+    @Resource
+    private IVoucherService voucherService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private VoucherOrderServiceImpl voucherOrderService;
+
+    @Resource
+    private RedisDelayQueue delayQueue;
+
+    /**
+     * 订单消息投递给某个消费者后一直没有ACK(消费者挂了) 空闲超过reclaim-min-idle后被XAUTOCLAIM认领
+     * 认领后订单写入数据库并ACK 同一个订单的消息再投递一次 不会重复写入也不会重复扣库存
+     */
+    @Test
+    void testReclaimPendingOrder() {
+        Long voucherId = createSeckillVoucher(10);
+        try {
+            long orderId = redisIdWorker.nextId("order");
+            Map<String, String> message = new HashMap<>();
+            message.put("userId", "-1");
+            message.put("voucherId", voucherId.toString());
+            message.put("id", String.valueOf(orderId));
+            for (int i = 0; i < 2; i++) {
+                //1. 模拟挂掉的消费者 读到消息后不处理
+                String recordId = deliverToDeadConsumer(message);
+                Assertions.assertFalse(pendingOf(recordId).isEmpty());
+                //2. 空闲超过reclaim-min-idle后认领 写入数据库并ACK
+                ThreadUtil.sleep(1500);
+                voucherOrderService.reclaimPendingOrders();
+                Assertions.assertTrue(pendingOf(recordId).isEmpty());
+                //3. 只有一个订单 库存只扣一次
+                List<VoucherOrder> orders = voucherOrderService.query().eq("voucher_id", voucherId).list();
+                Assertions.assertEquals(1, orders.size());
+                Assertions.assertEquals(orderId, orders.get(0).getId());
+                Assertions.assertEquals(9, seckillVoucherService.getById(voucherId).getStock());
+            }
+        } finally {
+            removeSeckillVoucher(voucherId);
+        }
+    }
+
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
+    /**
+     * 库存为1的秒杀券 第一个用户抢到后第二个用户库存不足 本节点标记售罄 之后的请求在内存中直接拒绝
+     * 补充库存后标记被清除 新的用户可以抢到
+     */
+    @Test
+    void testSoldOutReset() {
+        Long voucherId = createSeckillVoucher(1);
+        try {
+            //1. 抢完后标记售罄
+            Assertions.assertTrue(seckillAs(-1L, voucherId).getSuccess());
+            Assertions.assertFalse(seckillAs(-2L, voucherId).getSuccess());
+            long shortCircuit = soldOutRegistry.getShortCircuitCount();
+            Assertions.assertFalse(seckillAs(-3L, voucherId).getSuccess());
+            Assertions.assertEquals(shortCircuit + 1, soldOutRegistry.getShortCircuitCount());
+            //2. 售罄广播由监听线程异步处理 等它处理完再补货 迟到的售罄消息会重新标记
+            ThreadUtil.sleep(500);
+            Assertions.assertTrue(voucherService.addSeckillStock(voucherId, 1).getSuccess());
+            ThreadUtil.sleep(500);
+            Assertions.assertFalse(soldOutRegistry.isSoldOut(voucherId));
+            //3. 补货后可以继续抢
+            Assertions.assertTrue(seckillAs(-3L, voucherId).getSuccess());
+            Assertions.assertEquals(0L, Long.parseLong(stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + voucherId)));
+        } finally {
+            awaitOrders(voucherId, 2);
+            removeSeckillVoucher(voucherId);
+        }
+    }
+
+    /**
+     * 延迟队列 到期的元素被取出后在重试时间内不会再被取出 没有ack的到重试时间后再次取出 没到期的不会被取出
+     */
+    @Test
+    void testDelayQueueClaim() {
+        String queue = "test:delay:queue";
+        long now = System.currentTimeMillis();
+        Map<String, Long> items = new HashMap<>();
+        items.put("due", now - 1);
+        items.put("later", now + 60000);
+        try {
+            delayQueue.offer(queue, items);
+            Assertions.assertEquals(Collections.singletonList("due"), delayQueue.poll(queue, 10, 500));
+            Assertions.assertTrue(delayQueue.poll(queue, 10, 500).isEmpty());
+            ThreadUtil.sleep(600);
+            Assertions.assertEquals(Collections.singletonList("due"), delayQueue.poll(queue, 10, 500));
+            delayQueue.ack(queue, Collections.singletonList("due"));
+            Assertions.assertEquals(1, delayQueue.size(queue));
+        } finally {
+            stringRedisTemplate.delete(queue);
+        }
+    }
+
+    /**
+     * 超时未支付的订单 多个线程同时执行取消 之后同一个订单再次到期 库存只归还一次
+     * 取消后订单状态为已取消 数据库和redis库存各加回1 一人一单的记录被清除 库存可以被其他用户抢到
+     */
+    @Test
+    void testCancelTimeoutOrder() throws InterruptedException {
+        Long voucherId = createSeckillVoucher(1);
+        try {
+            //1. 下单并等待写入数据库
+            Result result = seckillAs(-1L, voucherId);
+            Assertions.assertTrue(result.getSuccess());
+            String orderId = result.getData().toString();
+            awaitOrders(voucherId, 1);
+            Assertions.assertEquals(0, seckillVoucherService.getById(voucherId).getStock());
+            //2. 改成已经到期 10个线程同时取消
+            delayQueue.offer(ORDER_TIMEOUT_QUEUE, Collections.singletonMap(orderId, System.currentTimeMillis() - 1));
+            concurrentQuery(10, () -> {
+                voucherOrderService.cancelTimeoutOrders();
+                return true;
+            });
+            await(() -> voucherOrderService.getById(orderId).getStatus() == 4);
+            //3. 同一个订单再次到期 已经取消的订单跳过 定时任务可能先取到 等它ack
+            delayQueue.offer(ORDER_TIMEOUT_QUEUE, Collections.singletonMap(orderId, System.currentTimeMillis() - 1));
+            voucherOrderService.cancelTimeoutOrders();
+            await(() -> stringRedisTemplate.opsForZSet().score(ORDER_TIMEOUT_QUEUE, orderId) == null);
+            //4. 库存只归还一次
+            Assertions.assertEquals(4, voucherOrderService.getById(orderId).getStatus());
+            Assertions.assertEquals(1, seckillVoucherService.getById(voucherId).getStock());
+            Assertions.assertEquals("1", stringRedisTemplate.opsForValue().get(SECKILL_STOCK_KEY + voucherId));
+            Assertions.assertFalse(stringRedisTemplate.opsForSet().isMember(SECKILL_ORDER_KEY + voucherId, "-1"));
+            Assertions.assertNull(stringRedisTemplate.opsForZSet().score(ORDER_TIMEOUT_QUEUE, orderId));
+            //5. 归还的库存可以被抢到
+            Assertions.assertTrue(seckillAs(-2L, voucherId).getSuccess());
+        } finally {
+            awaitOrders(voucherId, 2);
+            removeSeckillVoucher(voucherId);
+        }
+    }
+
+    private Result seckillAs(Long userId, Long voucherId){
+        UserDTO user = new UserDTO();
+        user.setId(userId);
+        UserHolder.saveUser(user);
+        try {
+            return voucherOrderService.seckillVoucher(voucherId);
+        } finally {
+            UserHolder.removeUser();
+        }
+    }
+
+    //等待后台线程把订单写入数据库 删除测试券之前调用 否则消息会因为券不存在一直处理失败
+    private void awaitOrders(Long voucherId, int count){
+        await(() -> voucherOrderService.query().eq("voucher_id", voucherId).count() >= count);
+    }
+
+    //最多等10s 超时后由调用方的断言报错
+    private void await(BooleanSupplier condition){
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            ThreadUtil.sleep(100);
+        }
+    }
+
+    //XADD和XREADGROUP在一个事务中执行 正常的消费者读不到这条消息 返回消息id
+    private String deliverToDeadConsumer(Map<String, String> message){
+        List<Object> results = stringRedisTemplate.execute((RedisCallback<List<Object>>) c -> {
+            c.multi();
+            List<byte[]> args = new ArrayList<>();
+            args.add(SECKILL_ORDER_STREAM.getBytes(StandardCharsets.UTF_8));
+            args.add("*".getBytes(StandardCharsets.UTF_8));
+            message.forEach((k, v) -> {
+                args.add(k.getBytes(StandardCharsets.UTF_8));
+                args.add(v.getBytes(StandardCharsets.UTF_8));
+            });
+            c.execute("XADD", args.toArray(new byte[0][]));
+            c.execute("XREADGROUP", Arrays.stream(new String[]{"GROUP", SECKILL_ORDER_GROUP, "test-dead", "COUNT", "1",
+                    "STREAMS", SECKILL_ORDER_STREAM, ">"}).map(a -> a.getBytes(StandardCharsets.UTF_8)).toArray(byte[][]::new));
+            return c.exec();
+        });
+        Assertions.assertNotNull(results);
+        Object recordId = results.get(0);
+        return recordId instanceof byte[] ? new String((byte[]) recordId, StandardCharsets.UTF_8) : String.valueOf(recordId);
+    }
+
+    private PendingMessages pendingOf(String recordId){
+        return stringRedisTemplate.opsForStream().pending(SECKILL_ORDER_STREAM, SECKILL_ORDER_GROUP,
+                Range.closed(recordId, recordId), 10);
+    }
+
+    //创建一张正在秒杀的测试券 提交后库存写入redis
+    private Long createSeckillVoucher(int stock){
+        Voucher voucher = new Voucher().setShopId(1L).setTitle("测试秒杀券").setPayValue(100L).setActualValue(100L)
+                .setType(1).setStatus(1).setStock(stock)
+                .setBeginTime(LocalDateTime.now().minusHours(1)).setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        return voucher.getId();
+    }
+
+    //删除测试券和它的订单 以及redis中的库存、下单用户、券信息和超时取消队列中的订单
+    private void removeSeckillVoucher(Long voucherId){
+        List<Long> orderIds = voucherOrderService.query().eq("voucher_id", voucherId).list()
+                .stream().map(VoucherOrder::getId).collect(Collectors.toList());
+        if(!orderIds.isEmpty()){
+            delayQueue.ack(ORDER_TIMEOUT_QUEUE, orderIds.stream().map(String::valueOf).collect(Collectors.toList()));
+            voucherOrderService.removeByIds(orderIds);
+        }
+        seckillVoucherService.removeById(voucherId);
+        voucherService.removeById(voucherId);
+        stringRedisTemplate.delete(Arrays.asList(SECKILL_STOCK_KEY + voucherId, SECKILL_ORDER_KEY + voucherId,
+                SECKILL_VOUCHER_KEY + voucherId));
+    }
+
+    /**
+     * 按ip限流时的客户端ip 直连地址不是可信代理时忽略X-Forwarded-For(客户端可以伪造)
+     * 直连的是可信代理时从右往左跳过可信代理 取第一个不可信的地址 全部可信时取最左边的
+     */
+    @Test
+    void testRateLimitClientIp() throws Exception {
+        RateLimitProperties properties = new RateLimitProperties();
+        properties.setTrustedProxies(Arrays.asList("127.0.0.1", "10.0.0.0/8"));
+        RateLimitProperties.Rule rule = new RateLimitProperties.Rule();
+        rule.setName("test");
+        rule.setPath("/test/**");
+        rule.setDimension(RateLimitProperties.Dimension.IP);
+        properties.setRules(Collections.singletonList(rule));
+        //只记录请求落到哪个桶 不访问redis
+        List<String> buckets = new ArrayList<>();
+        RateLimiter rateLimiter = new RateLimiter(stringRedisTemplate, properties, new SimpleMeterRegistry()) {
+            @Override
+            public boolean tryAcquire(RateLimitProperties.Rule rule, String id) {
+                buckets.add(id);
+                return true;
+            }
+        };
+        RateLimitInterceptor interceptor = new RateLimitInterceptor(rateLimiter, properties);
+
+        Assertions.assertEquals("203.0.113.5", clientIp(interceptor, buckets, "203.0.113.5", "1.2.3.4"));
+        Assertions.assertEquals("127.0.0.1", clientIp(interceptor, buckets, "127.0.0.1", null));
+        Assertions.assertEquals("1.2.3.4", clientIp(interceptor, buckets, "127.0.0.1", "1.2.3.4"));
+        Assertions.assertEquals("1.2.3.4", clientIp(interceptor, buckets, "127.0.0.1", "6.6.6.6, 1.2.3.4, 10.0.0.2"));
+        Assertions.assertEquals("10.0.0.5", clientIp(interceptor, buckets, "10.1.2.3", "10.0.0.5, 10.0.0.6"));
+    }
+
+    private String clientIp(RateLimitInterceptor interceptor, List<String> buckets, String remote, String forwarded)
+            throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/test/1");
+        request.setRemoteAddr(remote);
+        if(forwarded != null){
+            request.addHeader("X-Forwarded-For", forwarded);
+        }
+        buckets.clear();
+        Assertions.assertTrue(interceptor.preHandle(request, new MockHttpServletResponse(), null));
+        Assertions.assertEquals(1, buckets.size());
+        return buckets.get(0);
+    }
+
     @Test
     void loadShopData(){
         //1. 查询店铺信息